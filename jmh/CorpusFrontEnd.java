@@ -0,0 +1,32 @@
+import java.io.StringReader;
+
+import jam.bench.FrontEnd;
+
+/** The front end operations measured by jam.bench.FrontEndBenchmark, on a Corpus program. */
+public class CorpusFrontEnd implements FrontEnd {
+
+  private String program;
+  private char[] text;
+  private AST ast;
+
+  public void load(String corpus) {
+    if (corpus.equals("small")) program = Corpus.SMALL;
+    else if (corpus.equals("wide")) program = Corpus.wide(20000);
+    else if (corpus.equals("deep")) program = Corpus.deep(1000);
+    else throw new IllegalArgumentException("no corpus program " + corpus);
+    text = program.toCharArray();
+    ast = new Parser(text).parse();
+  }
+
+  public long lexerReadToken() { return Bench.countTokens(new Lexer(new StringReader(program))); }
+
+  public long charLexerReadToken() { return Bench.countTokens(new CharLexer(text)); }
+
+  public Object parse() { return new Parser(new StringReader(program)).parse(); }
+
+  public Object parseChars() { return new Parser(text).parse(); }
+
+  public Object parseIteratively() { return new Parser(text).parseIteratively(); }
+
+  public String unparse() { return ast.toString(); }
+}
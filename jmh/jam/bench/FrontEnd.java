@@ -0,0 +1,28 @@
+package jam.bench;
+
+/** The front end operations measured by FrontEndBenchmark.  JMH does not accept benchmarks in the default package,
+  * which is where the Jam classes are and from which nothing can be imported, so the benchmark reaches them through
+  * this interface, implemented by CorpusFrontEnd in the default package and loaded by name. */
+public interface FrontEnd {
+
+  /** Loads the Corpus program named small, wide or deep and parses it once for unparse() */
+  void load(String corpus);
+
+  /** Reads every token of the program through Lexer and returns the number of tokens */
+  long lexerReadToken();
+
+  /** Reads every token of the program through CharLexer and returns the number of tokens */
+  long charLexerReadToken();
+
+  /** Returns the AST of the program parsed from a StringReader */
+  Object parse();
+
+  /** Returns the AST of the program parsed from its chars */
+  Object parseChars();
+
+  /** Returns the AST of the program parsed from its chars by Parser.parseIteratively() */
+  Object parseIteratively();
+
+  /** Returns the toString() of the AST of the program */
+  String unparse();
+}
@@ -0,0 +1,59 @@
+package jam.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** JMH benchmarks for the Jam front end on the small, wide and deep programs of Corpus: Lexer.readToken(),
+  * CharLexer.readToken(), Parser.parse(), Parser.parseIteratively() and AST toString().  Bench measures the same
+  * operations without JMH.  Built and run through the jmh profile:
+  *
+  *   mvn -P jmh package && java -jar target/benchmarks.jar FrontEndBenchmark
+  */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgs = { "-Xss64m" })
+public class FrontEndBenchmark {
+
+  @Param({ "small", "wide", "deep" })
+  public String corpus;
+
+  private FrontEnd frontEnd;
+
+  @Setup
+  public void setUp() throws ReflectiveOperationException {
+    frontEnd = (FrontEnd) Class.forName("CorpusFrontEnd").getDeclaredConstructor().newInstance();
+    frontEnd.load(corpus);
+  }
+
+  @Benchmark
+  public long lexerReadToken() { return frontEnd.lexerReadToken(); }
+
+  @Benchmark
+  public long charLexerReadToken() { return frontEnd.charLexerReadToken(); }
+
+  @Benchmark
+  public Object parse() { return frontEnd.parse(); }
+
+  @Benchmark
+  public Object parseChars() { return frontEnd.parseChars(); }
+
+  @Benchmark
+  public Object parseIteratively() { return frontEnd.parseIteratively(); }
+
+  @Benchmark
+  public String unparse() { return frontEnd.unparse(); }
+}
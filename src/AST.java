@@ -1,7 +1,11 @@
-/** AST ::= BoolConstant | IntConstant | JamEmpty | Variable | PrimFun | UnOpApp | BinOpApp | App | Map | If | Let */
+/** AST ::= BoolConstant | IntConstant | JamEmpty | Variable | PrimFun | UnOpApp | BinOpApp | App | Map | If | Let
+  *         | ErrorNode */
 
 /** AST class definitions */
 
+/* The toString() methods of the composite AST classes produce concrete syntax using Unparser, which runs in linear 
+ * time without recursing on the Java stack. */
+
 /** The AST type which support a visitor interface */
 interface AST {
   public <ResType> ResType accept(ASTVisitor<ResType> v);
@@ -20,6 +24,7 @@ interface ASTVisitor<ResType> {
   ResType forMap(Map m);
   ResType forIf(If i);
   ResType forLet(Let l);
+  ResType forErrorNode(ErrorNode e);
 }
 
 /* The Term interface correspond to AST's that when output as concrete syntax by toString() can be used as terms 
@@ -238,7 +243,7 @@ class UnOpApp implements Term {
   public UnOp rator() { return rator; }
   public AST arg() { return arg; }
   public <ResType> ResType accept(ASTVisitor<ResType> v) { return v.forUnOpApp(this); }
-  public String toString() { return rator + " " + arg; }
+  public String toString() { return Unparser.toString(this); }
 }
 
 class BinOpApp implements Term {
@@ -251,14 +256,7 @@ class BinOpApp implements Term {
   public AST arg1() { return arg1; }
   public AST arg2() { return arg2; }
   public <ResType> ResType accept(ASTVisitor<ResType> v) { return v.forBinOpApp(this); }
-  public String toString() {
-    return "(" + toString(arg1) + " " + rator + " " + toString(arg2) + ")"; 
-  }
-  private String toString(AST arg) {
-    String argString = arg.toString();
-    if (! (arg instanceof Term)) return "(" + argString + ")";
-    else return argString;
-  }
+  public String toString() { return Unparser.toString(this); }
 }
 
 class Map implements AST {
@@ -269,9 +267,7 @@ class Map implements AST {
   public Variable[] vars() { return vars; }
   public AST body() { return body; }
   public <ResType> ResType accept(ASTVisitor<ResType> v) { return v.forMap(this); }
-  public String toString() { 
-    return "map " + ToString.toString(vars,",") + " to " + body;
-  }
+  public String toString() { return Unparser.toString(this); }
 }  
 
 class App implements Term {
@@ -284,12 +280,7 @@ class App implements Term {
   public AST[] args() { return args; }
   
   public <ResType> ResType accept(ASTVisitor<ResType> v) { return v.forApp(this); }
-  public String toString() { 
-    if ((rator instanceof PrimFun) || (rator instanceof Variable))
-      return rator + "(" + ToString.toString(args,", ") + ")"; 
-    else
-      return "(" +  rator + ")(" + ToString.toString(args,", ") + ")"; 
-  }
+  public String toString() { return Unparser.toString(this); }
 }  
 
 class If implements AST {
@@ -300,9 +291,7 @@ class If implements AST {
   public AST conseq() { return conseq; }
   public AST alt() { return alt; }
   public <ResType> ResType accept(ASTVisitor<ResType> v) { return v.forIf(this); }
-  public String toString() { 
-    return "if " + test + " then " + conseq + " else " + alt ; 
-  }
+  public String toString() { return Unparser.toString(this); }
 }  
 
 class Let implements AST {
@@ -313,9 +302,7 @@ class Let implements AST {
   public <ResType> ResType accept(ASTVisitor<ResType> v) { return v.forLet(this); }
   public Def[] defs() { return defs; }
   public AST body() { return body; }
-  public String toString() { 
-    return "let " + ToString.toString(defs," ") + " in " + body; 
-  }
+  public String toString() { return Unparser.toString(this); }
 }  
 
 /** Def class representing a definition embedded inside a Let. */
@@ -327,14 +314,26 @@ class Def {
   public Variable lhs() { return lhs; }
   public AST rhs() { return rhs; }
   
-  public String toString() { return lhs + " := " + rhs + ";"; }
+  public String toString() { return Unparser.toString(this); }
+}
+
+/** A placeholder for a phrase with a syntax error, inserted by a Parser in recovery mode (see Parser.recover) in
+  * place of the expression in which the error occurred.  An AST containing one can be printed but not run. */
+class ErrorNode implements Term {
+  private ParseException diagnostic;
+
+  ErrorNode(ParseException d) { diagnostic = d; }
+  public ParseException diagnostic() { return diagnostic; }
+
+  public <ResType> ResType accept(ASTVisitor<ResType> v) { return v.forErrorNode(this); }
+  public String toString() { return "<error>"; }
 }
 
 /** Dummy class containing an improved toString method for arrays. */
 class ToString {
   
   public static String toString(Object[] a, String s) {
-    StringBuffer result = new StringBuffer();
+    StringBuilder result = new StringBuilder();
     for (int i = 0; i < a.length; i++) {
       if (i > 0) result.append(s);
       Object elt = a[i];
@@ -0,0 +1,425 @@
+/** A compact, versioned binary encoding of ASTs, used by the disk tier of ParseCache.
+  *
+  * An encoding is
+  *
+  *   "JAST" version:varint strings ints nodes:varint groups root:node
+  *   strings ::= count:varint { length:varint utf8-bytes }*
+  *   ints    ::= count:varint { value:zigzag-varint }*
+  *   groups  ::= { tag:byte count:varint { operands }* }*
+  *
+  * Every node has a number, and a node operand is the varint number of a node already decoded.  The leaves come
+  * first: LEAVES are numbered from 0, the Variables named by the string table follow them, and the IntConstants of
+  * the int table follow the Variables.  The composite nodes are numbered after the leaves in the order written, which
+  * is by height, so that a node follows its children, and within a height by tag, so that they form groups of nodes
+  * with the same tag.  The decoder builds a group in a loop of its own, which saves it an unpredictable dispatch on
+  * the tag of every node; that dispatch, not allocation, is what decoding a node at a time costs.  The operands of
+  * the nodes of each tag are
+  *
+  *   UNOP + i   arg                     BINOP + i   arg1, arg2
+  *   APP        n, rator, n args        MAP         n, n names:string, body
+  *   IF         test, conseq, alt       LET         n, n lhs:string, n rhs, body
+  *
+  * where UNOP + i applies UNOPS[i], BINOP + i applies BINOPS[i] and a string is an index into the string table.  A
+  * node object reachable along several paths (a subtree shared by a HashConsingFactory) is written once, so the
+  * decoded AST has the same sharing; equal leaves are decoded as one node.  The reader decodes out of a ByteBuffer,
+  * e.g. a memory-mapped file, and neither encoding nor decoding recurses on the Java stack.
+  */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+class ASTCodec {
+
+  static final int VERSION = 2;
+  private static final byte[] MAGIC = { 'J', 'A', 'S', 'T' };
+
+  /* group tags */
+  static final int APP = 0, MAP = 1, IF = 2, LET = 3, UNOP = 4, BINOP = 7;
+
+  static final UnOp[] UNOPS = { UnOpPlus.ONLY, UnOpMinus.ONLY, OpTilde.ONLY };
+  static final BinOp[] BINOPS = {
+    BinOpPlus.ONLY, BinOpMinus.ONLY, OpTimes.ONLY, OpDivide.ONLY, OpEquals.ONLY, OpNotEquals.ONLY, OpLessThan.ONLY,
+    OpGreaterThan.ONLY, OpLessThanEquals.ONLY, OpGreaterThanEquals.ONLY, OpAnd.ONLY, OpOr.ONLY
+  };
+  static final AST[] LEAVES = {
+    BoolConstant.TRUE, BoolConstant.FALSE, EmptyConstant.ONLY, FunctionPPrim.ONLY, NumberPPrim.ONLY, ListPPrim.ONLY,
+    ConsPPrim.ONLY, EmptyPPrim.ONLY, ArityPrim.ONLY, ConsPrim.ONLY, FirstPrim.ONLY, RestPrim.ONLY
+  };
+
+  private ASTCodec() {}
+
+  static int indexOf(Object[] table, Object o) {
+    for (int i = 0; i < table.length; i++) if (table[i] == o) return i;
+    throw new IllegalArgumentException("cannot encode " + o);
+  }
+
+  /** Returns the encoding of ast */
+  static byte[] encode(AST ast) { return new Encoder().encode(ast); }
+
+  /** Returns the AST encoded in bytes[position..limit) */
+  static AST decode(ByteBuffer bytes) throws IOException { return new Decoder(bytes).decode(); }
+
+  /** Returns the AST encoded in bytes */
+  static AST decode(byte[] bytes) throws IOException { return decode(ByteBuffer.wrap(bytes)); }
+
+  /** The children of a node, in the order they are written; leaves have none */
+  private static final ASTVisitor<AST[]> CHILDREN = new ASTVisitor<AST[]>() {
+    private final AST[] none = new AST[0];
+    public AST[] forBoolConstant(BoolConstant b) { return none; }
+    public AST[] forIntConstant(IntConstant i) { return none; }
+    public AST[] forEmptyConstant(EmptyConstant n) { return none; }
+    public AST[] forJamEmpty(JamEmpty je) { return none; }
+    public AST[] forVariable(Variable v) { return none; }
+    public AST[] forPrimFun(PrimFun f) { return none; }
+    public AST[] forErrorNode(ErrorNode e) { return none; }
+    public AST[] forUnOpApp(UnOpApp u) { return new AST[] { u.arg() }; }
+    public AST[] forBinOpApp(BinOpApp b) { return new AST[] { b.arg1(), b.arg2() }; }
+
+    public AST[] forApp(App a) {
+      AST[] children = new AST[a.args().length + 1];
+      children[0] = a.rator();
+      System.arraycopy(a.args(), 0, children, 1, a.args().length);
+      return children;
+    }
+
+    public AST[] forMap(Map m) { return new AST[] { m.body() }; }
+    public AST[] forIf(If i) { return new AST[] { i.test(), i.conseq(), i.alt() }; }
+
+    public AST[] forLet(Let l) {
+      Def[] defs = l.defs();
+      AST[] children = new AST[defs.length + 1];
+      for (int i = 0; i < defs.length; i++) children[i] = defs[i].rhs();
+      children[defs.length] = l.body();
+      return children;
+    }
+  };
+
+  /** Numbers the nodes of a tree and writes them; visiting a leaf enters it in the tables and returns -1, and
+    * visiting a composite node returns its tag. */
+  private static class Encoder implements ASTVisitor<Integer> {
+    private byte[] buf = new byte[256];
+    private int size = 0;
+    private final IdentityHashMap<AST,Integer> numbers = new IdentityHashMap<AST,Integer>();
+    private final HashMap<String,Integer> strings = new HashMap<String,Integer>();
+    private final ArrayList<String> stringList = new ArrayList<String>();
+    private final HashMap<Integer,Integer> ints = new HashMap<Integer,Integer>();
+    private final ArrayList<Integer> intList = new ArrayList<Integer>();
+    /** The number of bytes in a node operand */
+    private int width = 1;
+
+    byte[] encode(AST root) {
+      // find the distinct leaves and the distinct composite nodes, in postorder, keyed by height and tag
+      IdentityHashMap<AST,Long> keys = new IdentityHashMap<AST,Long>();
+      ArrayList<AST> leaves = new ArrayList<AST>();
+      ArrayList<AST> composites = new ArrayList<AST>();
+      ArrayList<AST> stack = new ArrayList<AST>();
+      ArrayList<Boolean> expanded = new ArrayList<Boolean>();
+      stack.add(root);
+      expanded.add(false);
+      while (! stack.isEmpty()) {
+        int top = stack.size() - 1;
+        AST node = stack.remove(top);
+        boolean childrenDone = expanded.remove(top);
+        if (keys.containsKey(node)) continue;
+        AST[] children = node.accept(CHILDREN);
+        if (children.length == 0) {
+          node.accept(this);
+          keys.put(node, 0L);
+          leaves.add(node);
+        }
+        else if (childrenDone) {
+          long height = 0;
+          for (AST child : children) height = Math.max(height, keys.get(child) >> 8);
+          keys.put(node, (height + 1) << 8 | node.accept(this));
+          composites.add(node);
+        }
+        else {
+          stack.add(node);
+          expanded.add(true);
+          for (int i = children.length - 1; i >= 0; i--) {
+            stack.add(children[i]);
+            expanded.add(false);
+          }
+        }
+      }
+      // order the composite nodes by key, and by postorder within a key
+      long[] order = new long[composites.size()];
+      for (int i = 0; i < order.length; i++) order[i] = keys.get(composites.get(i)) << 32 | i;
+      Arrays.sort(order);
+      for (AST leaf : leaves) numbers.put(leaf, leafNumber(leaf));
+      int number = LEAVES.length + stringList.size() + intList.size();
+      for (long o : order) numbers.put(composites.get((int) o), number++);
+      while (width < 5 && number - 1 >>> 7 * width != 0) width++;
+
+      for (byte b : MAGIC) put(b);
+      varint(VERSION);
+      varint(stringList.size());
+      for (String s : stringList) {
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        varint(utf8.length);
+        for (byte b : utf8) put(b);
+      }
+      varint(intList.size());
+      for (int i : intList) varint((i << 1) ^ (i >> 31));
+      varint(order.length);
+      for (int start = 0, end; start < order.length; start = end) {
+        long key = order[start] >>> 32;
+        for (end = start + 1; end < order.length && order[end] >>> 32 == key; end++) ;
+        int tag = (int) key & 0xFF;
+        put(tag);
+        varint(end - start);
+        for (int i = start; i < end; i++) operands(composites.get((int) order[i]), tag);
+      }
+      node(root);
+      return Arrays.copyOf(buf, size);
+    }
+
+    private int leafNumber(AST leaf) {
+      if (leaf instanceof Variable) return LEAVES.length + strings.get(((Variable) leaf).name());
+      if (leaf instanceof IntConstant) {
+        return LEAVES.length + stringList.size() + ints.get(((IntConstant) leaf).value());
+      }
+      if (leaf instanceof JamEmpty) return indexOf(LEAVES, EmptyConstant.ONLY);
+      return indexOf(LEAVES, leaf);
+    }
+
+    private void operands(AST node, int tag) {
+      AST[] children = node.accept(CHILDREN);
+      if (tag == APP) varint(children.length - 1);
+      else if (tag == MAP) {
+        Variable[] vars = ((Map) node).vars();
+        varint(vars.length);
+        for (Variable v : vars) varint(string(v));
+      }
+      else if (tag == LET) {
+        Def[] defs = ((Let) node).defs();
+        varint(defs.length);
+        for (Def d : defs) varint(string(d.lhs()));
+      }
+      for (AST child : children) node(child);
+    }
+
+    private void put(int b) {
+      if (size == buf.length) buf = Arrays.copyOf(buf, 2 * size);
+      buf[size++] = (byte) b;
+    }
+
+    private void varint(int n) {
+      while ((n & ~0x7F) != 0) {
+        put((n & 0x7F) | 0x80);
+        n >>>= 7;
+      }
+      put(n);
+    }
+
+    /** Writes a node operand padded to the width of the largest, since mixed lengths cost the decoder a branch
+      * mispredicted on every other operand */
+    private void node(AST node) {
+      int n = numbers.get(node);
+      for (int i = 1; i < width; i++) {
+        put((n & 0x7F) | 0x80);
+        n >>>= 7;
+      }
+      put(n);
+    }
+
+    /** Returns the index of the name of v in the string table, entering it if it is new */
+    private int string(Variable v) {
+      Integer index = strings.get(v.name());
+      if (index == null) {
+        index = stringList.size();
+        strings.put(v.name(), index);
+        stringList.add(v.name());
+      }
+      return index;
+    }
+
+    private Integer leaf(AST leaf) {
+      indexOf(LEAVES, leaf);
+      return -1;
+    }
+
+    public Integer forBoolConstant(BoolConstant b) { return leaf(b); }
+    public Integer forEmptyConstant(EmptyConstant n) { return leaf(n); }
+    public Integer forJamEmpty(JamEmpty je) { return -1; }
+    public Integer forPrimFun(PrimFun f) { return leaf(f); }
+
+    public Integer forIntConstant(IntConstant i) {
+      if (! ints.containsKey(i.value())) {
+        ints.put(i.value(), intList.size());
+        intList.add(i.value());
+      }
+      return -1;
+    }
+
+    public Integer forVariable(Variable v) {
+      string(v);
+      return -1;
+    }
+
+    public Integer forErrorNode(ErrorNode e) {
+      throw new IllegalArgumentException("cannot encode an AST with a syntax error");
+    }
+
+    public Integer forUnOpApp(UnOpApp u) { return UNOP + indexOf(UNOPS, u.rator()); }
+    public Integer forBinOpApp(BinOpApp b) { return BINOP + indexOf(BINOPS, b.rator()); }
+    public Integer forApp(App a) { return APP; }
+    public Integer forIf(If i) { return IF; }
+
+    /** The names bound by a Map or Let go in the string table with the names of the Variables */
+    public Integer forMap(Map m) {
+      for (Variable v : m.vars()) string(v);
+      return MAP;
+    }
+
+    public Integer forLet(Let l) {
+      for (Def d : l.defs()) string(d.lhs());
+      return LET;
+    }
+  }
+
+  /** The decoder, which reads a byte array: the array backing the buffer if it has one, and otherwise a copy of its
+    * contents made by one bulk get, since reading a mapped buffer a byte at a time through absolute gets costs a
+    * bounds check and an address computation per byte.  Reads past the end of the encoding within the array are
+    * caught by the final check that decoding stopped exactly at its end. */
+  private static class Decoder {
+    private final byte[] in;
+    private int pos;
+    private final int end;
+    private Variable[] variables;
+    private AST[] nodes;
+    /** The number of nodes decoded so far, which a node operand must be below */
+    private int size;
+
+    Decoder(ByteBuffer bytes) {
+      if (bytes.hasArray()) {
+        in = bytes.array();
+        pos = bytes.arrayOffset() + bytes.position();
+        end = bytes.arrayOffset() + bytes.limit();
+      }
+      else {
+        in = new byte[bytes.remaining()];
+        bytes.get(bytes.position(), in);
+        pos = 0;
+        end = in.length;
+      }
+    }
+
+    AST decode() throws IOException {
+      try {
+        for (byte b : MAGIC) if (in[pos++] != b) throw new IOException("not an encoded AST");
+        int version = varint();
+        if (version != VERSION) throw new IOException("unsupported AST encoding version " + version);
+        variables = new Variable[count()];
+        for (int i = 0; i < variables.length; i++) {
+          int length = count();
+          variables[i] = new Variable(new String(in, pos, length, StandardCharsets.UTF_8));
+          pos += length;
+        }
+        int[] ints = new int[count()];
+        for (int i = 0; i < ints.length; i++) {
+          int n = varint();
+          ints[i] = (n >>> 1) ^ -(n & 1);
+        }
+        nodes = new AST[LEAVES.length + variables.length + ints.length + count()];
+        System.arraycopy(LEAVES, 0, nodes, 0, LEAVES.length);
+        System.arraycopy(variables, 0, nodes, LEAVES.length, variables.length);
+        size = LEAVES.length + variables.length;
+        for (int i : ints) nodes[size++] = IntConstant.valueOf(i);
+        while (size < nodes.length) group();
+        AST root = node();
+        if (pos != end) throw new IOException("trailing bytes after encoded AST");
+        return root;
+      }
+      catch (RuntimeException e) {  // an index out of range: a truncated or corrupt encoding
+        throw new IOException("corrupt AST encoding: " + e);
+      }
+    }
+
+    /** Decodes a group of nodes with the same tag */
+    private void group() throws IOException {
+      int tag = in[pos++];
+      int n = varint();
+      if (n <= 0 || n > nodes.length - size) throw new IOException("corrupt AST encoding: group of " + n);
+      int stop = size + n;
+      switch (tag) {
+        case APP:
+          while (size < stop) {
+            AST[] args = new AST[count()];
+            AST rator = node();
+            for (int i = 0; i < args.length; i++) args[i] = node();
+            nodes[size++] = new App(rator, args);
+          }
+          break;
+        case MAP:
+          while (size < stop) {
+            Variable[] vars = new Variable[count()];
+            for (int i = 0; i < vars.length; i++) vars[i] = variables[varint()];
+            nodes[size++] = new Map(vars, node());
+          }
+          break;
+        case IF:
+          while (size < stop) nodes[size++] = new If(node(), node(), node());
+          break;
+        case LET:
+          while (size < stop) {
+            Def[] defs = new Def[count()];
+            Variable[] lhs = new Variable[defs.length];
+            for (int i = 0; i < defs.length; i++) lhs[i] = variables[varint()];
+            for (int i = 0; i < defs.length; i++) defs[i] = new Def(lhs[i], node());
+            nodes[size++] = new Let(defs, node());
+          }
+          break;
+        default:
+          if (tag >= BINOP && tag < BINOP + BINOPS.length) {
+            BinOp op = BINOPS[tag - BINOP];
+            while (size < stop) nodes[size++] = new BinOpApp(op, node(), node());
+          }
+          else if (tag >= UNOP && tag < BINOP) {
+            UnOp op = UNOPS[tag - UNOP];
+            while (size < stop) nodes[size++] = new UnOpApp(op, node());
+          }
+          else throw new IOException("bad AST tag " + tag);
+      }
+    }
+
+    /** Reads a node operand, which must refer to a node already decoded */
+    private AST node() throws IOException {
+      int number = varint();
+      if (number >= size) throw new IOException("corrupt AST encoding: node " + number + " used before it is decoded");
+      return nodes[number];
+    }
+
+    /** Reads a varint, with the common one byte case first and the rest out of line */
+    private int varint() {
+      int b = in[pos++];
+      return b >= 0 ? b : varint(b);
+    }
+
+    private int varint(int b) {
+      int n = b & 0x7F;
+      b = in[pos++];
+      if (b >= 0) return n | b << 7;
+      n |= (b & 0x7F) << 7;
+      b = in[pos++];
+      if (b >= 0) return n | b << 14;
+      n |= (b & 0x7F) << 14;
+      b = in[pos++];
+      if (b >= 0) return n | b << 21;
+      n |= (b & 0x7F) << 21;
+      return n | in[pos++] << 28;
+    }
+
+    /** Reads the length of an array, which cannot exceed the bytes left since every element takes at least one */
+    private int count() throws IOException {
+      int n = varint();
+      if (n < 0 || n > end - pos) throw new IOException("corrupt AST encoding: count " + n + " at " + pos);
+      return n;
+    }
+  }
+}
@@ -10,6 +10,28 @@ public class Assign1Test extends TestCase {
   protected void checkString(String name, String answer, String program) {
     Parser p = new Parser(new StringReader(program));
     assertEquals(name, answer, p.parse().toString());
+    Parser q = new Parser(program.toCharArray());
+    assertEquals(name + " (CharLexer)", answer, q.parse().toString());
+    Parser r = new Parser(new StringReader(program));
+    assertEquals(name + " (parseIteratively)", answer, r.parseIteratively().toString());
+  }
+  
+  /** Checks that Lexer and CharLexer produce the same token sequence for program. */
+  protected void checkTokens(String name, String program) {
+    checkTokens(name, new Lexer(new StringReader(program)), new CharLexer(program.toCharArray()));
+  }
+  
+  /** Checks that expected and actual produce the same token sequence. */
+  protected void checkTokens(String name, TokenSource expected, TokenSource actual) {
+    for (int i = 0; ; i++) {
+      Token e = expected.readToken();
+      Token a = actual.readToken();
+      if (e instanceof IntConstant) assertEquals(name + " token " + i, e, a);
+      else if (e instanceof Variable && a instanceof Variable) 
+        assertEquals(name + " token " + i, e.toString(), a.toString());
+      else assertSame(name + " token " + i, e, a);
+      if (e == null) break;
+    }
   }
 
   public void testAdd() {
@@ -74,4 +96,685 @@ public class Assign1Test extends TestCase {
       fail("map threw " + e);
     }
   } //end of func   
+
+  public void testCharLexer() {
+    try {
+      checkTokens("ops", "a<=b >= c != d := e < f > g<\n= h ! = i : = j + - * / ~ = & | ( ) [ ] , ;");
+      checkTokens("numbers", "0 12 2147483647 1.0 3. 12abc .");
+      checkTokens("words", "x_1 number? a.b empty true false cons first rest if then else let in map to");
+      checkTokens("comments", "f(x) // a comment ( ;\r\n + 1 // trailing");
+      checkTokens("repeated", "let x:=3; y:=x; in x + y");
+      String[] errors = { "!x", "! 2", ":", "1 ! 2 + 3", "!", "! // c\n.5.5", "! + 1", ": x" };
+      for (String error : errors) {
+        assertEquals(error, lexAll(new Lexer(new StringReader(error))), lexAll(new CharLexer(error.toCharArray())));
+        java.util.List<ParseException> expected = new java.util.ArrayList<ParseException>();
+        java.util.List<ParseException> actual = new java.util.ArrayList<ParseException>();
+        assertEquals(error, new Parser(new StringReader(error)).recover(expected).parse().toString(),
+                     new Parser(error.toCharArray()).recover(actual).parse().toString());
+        assertEquals(error, expected.toString(), actual.toString());
+      }
+    } catch (Exception e) {
+      fail("charLexer threw " + e);
+    }
+  } //end of func
+
+  public void testMappedLexer() {
+    try {
+      String program = "let \u03bcs := 1; \u03bb := map x to x <= 2.0; in \u03bb(\u03bcs) // done\n";
+      File file = File.createTempFile("mapped", ".jam");
+      file.deleteOnExit();
+      Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+      out.write(program);
+      out.close();
+      checkTokens("mapped", new Lexer(new StringReader(program)), new MappedLexer(file.getPath()));
+      assertEquals("mapped parse", "let \u03bcs := 1; \u03bb := map x to (x <= 2); in \u03bb(\u03bcs)",
+                   Parser.newMappedParser(file.getPath()).parse().toString());
+    } catch (Exception e) {
+      fail("mappedLexer threw " + e);
+    }
+  } //end of func
+
+  public void testIntConstantCache() {
+    try {
+      Lexer in = new Lexer(new StringReader("1 1 100000 100000"));
+      assertSame("cached literal", in.readToken(), in.readToken());
+      Token big = in.readToken();
+      assertEquals("uncached literal", big, in.readToken());
+      assertEquals("hashCode", big.hashCode(), IntConstant.valueOf(100000).hashCode());
+      java.util.HashSet<IntConstant> set = new java.util.HashSet<IntConstant>();
+      set.add(IntConstant.valueOf(100000));
+      assertTrue("hash key", set.contains(big));
+      assertSame("valueOf", IntConstant.valueOf(-1), IntConstant.valueOf(-1));
+    } catch (Exception e) {
+      fail("intConstantCache threw " + e);
+    }
+  } //end of func
+
+  public void testLets() {
+    try {
+      String output = "let x := 3; f := map y to (y * x); in let z := f(x); in (z + 1)";
+      String input = "let x := 3; f := map y to y * x; in let z := f(x); in z + 1";
+      checkString("lets", output, input );
+
+    } catch (Exception e) {
+      fail("lets threw " + e);
+    }
+  } //end of func
+  
+  public void testParseIterativelyException() {
+    String[] programs = { "map a, to 3", "f(x", "let x := 1 in x", "if x then y", "1 + * 2", "(1 + 2", "1 2" };
+    for (String program : programs) {
+      String expected = null;
+      try { new Parser(new StringReader(program)).parse(); } 
+      catch (ParseException e) { expected = e.getMessage(); }
+      try {
+        new Parser(new StringReader(program)).parseIteratively();
+        fail("parseIteratively did not throw ParseException on " + program);
+      } catch (ParseException e) {
+        assertEquals(program, expected, e.getMessage());
+      }
+    }
+  } //end of func
+  
+  public void testDeepNesting() {
+    try {
+      int depth = 1000000;
+      StringBuilder program = new StringBuilder();
+      for (int i = 0; i < depth; i++) program.append("let y := map z to if - f((1 + (");
+      program.append("x");
+      for (int i = 0; i < depth; i++) program.append("))) then 1 else 2; in y");
+      char[] text = new char[program.length()];
+      program.getChars(0, text.length, text, 0);
+      program = null;
+      
+      AST ast = new Parser(text).parseIteratively();
+      for (int i = 0; i < depth; i++) {
+        Let let = (Let) ast;
+        assertEquals("let body", "y", let.body().toString());
+        Map map = (Map) let.defs()[0].rhs();
+        If ifExp = (If) map.body();
+        assertEquals("else", "2", ifExp.alt().toString());
+        App app = (App) ((UnOpApp) ifExp.test()).arg();
+        ast = ((BinOpApp) app.args()[0]).arg2();
+      }
+      assertEquals("innermost", "x", ast.toString());
+    } catch (Exception e) {
+      fail("deepNesting threw " + e);
+    }
+  } //end of func
+  
+  public void testUnparser() throws IOException {
+    int depth = 100000;
+    StringBuilder program = new StringBuilder();
+    for (int i = 0; i < depth; i++) program.append("let y := map z to if - f((1 + (");
+    program.append("let x := 0; in x");
+    for (int i = 0; i < depth; i++) program.append("))) then 1 else 2; in y");
+    
+    AST ast = new Parser(program.toString().toCharArray()).parseIteratively();
+    StringBuilder unparsed = new StringBuilder();
+    Unparser.unparse(ast, unparsed);
+    assertEquals("source text", program.toString(), unparsed.toString());
+    assertEquals("toString", unparsed.toString(), ast.toString());
+  } //end of func
+
+  public void testGeneratedPrograms() {
+    try {
+      for (long seed = 0; seed < 20; seed++) {
+        String program = JamGenerator.program(seed, 4096);
+        assertEquals("deterministic", program, JamGenerator.program(seed, 4096));
+        String unparsed = new Parser(new StringReader(program)).parse().toString();
+        assertEquals("parseIteratively " + seed, unparsed,
+                     new Parser(program.toCharArray()).parseIteratively().toString());
+      }
+    } catch (Exception e) {
+      fail("generatedPrograms threw " + e);
+    }
+  } //end of func
+
+  public void testSymbolTable() {
+    try {
+      final SymbolTable symbols = new SymbolTable();
+      Token x = new Lexer(new StringReader("x"), symbols).readToken();
+      assertSame("Lexer", x, new CharLexer("y x".toCharArray(), 1, 3, symbols).readToken());
+      assertSame("keyword", new Lexer(new StringReader("let")).readToken(), symbols.intern("let"));
+      checkTokens("shared", new Lexer(new StringReader(Corpus.SMALL)), 
+                  new CharLexer(Corpus.SMALL.toCharArray(), 0, Corpus.SMALL.length(), symbols));
+      
+      final String program = JamGenerator.program(7, 1 << 14);
+      final Token[][] tokens = new Token[4][];
+      Thread[] threads = new Thread[tokens.length];
+      for (int t = 0; t < threads.length; t++) {
+        final int k = t;
+        threads[t] = new Thread() {
+          public void run() {
+            TokenSource in = k % 2 == 0 ? new Lexer(new StringReader(program), symbols) 
+                                        : new CharLexer(program.toCharArray(), 0, program.length(), symbols);
+            java.util.ArrayList<Token> list = new java.util.ArrayList<Token>();
+            for (Token token = in.readToken(); token != null; token = in.readToken()) list.add(token);
+            tokens[k] = list.toArray(new Token[0]);
+          }
+        };
+        threads[t].start();
+      }
+      for (Thread thread : threads) thread.join();
+      for (int t = 1; t < tokens.length; t++) {
+        assertEquals("token count", tokens[0].length, tokens[t].length);
+        for (int i = 0; i < tokens[0].length; i++) 
+          if (tokens[0][i] instanceof Variable) assertSame("token " + i, tokens[0][i], tokens[t][i]);
+      }
+    } catch (Exception e) {
+      fail("symbolTable threw " + e);
+    }
+  } //end of func
+
+  /** Checks that program evaluates (call-by-value) to a value that prints as answer. */
+  protected void checkEval(String name, String answer, String program) {
+    assertEquals(name, answer, new Interpreter(new StringReader(program)).callByValue().toString());
+  }
+
+  public void testInterpreter() {
+    try {
+      checkEval("arith", "-8", "1 + 2 * 3 - 20 / (5 - 1) * 2 - 4");
+      checkEval("fib", "6765", Corpus.fib(20));
+      checkEval("list", "500500", Corpus.list(1000));
+      checkEval("small", "(120 true)", Corpus.SMALL);
+      checkEval("closures", "(11 12)", 
+                "let add := map x to map y to x + y; f := add(10); in cons(f(1), cons((add(10))(2), empty))");
+      checkEval("shadowing", "3", "let x := 1; in let y := x + 2; f := map x to x; in f(y)");
+      checkEval("prims", "(true false 2 1)", 
+                "cons(list?(empty), cons(function?(3), cons(arity(cons), cons(arity(map x to x), empty))))");
+      checkEval("and", "false", "let z := 0; in (z != 0) & (1 / z > 2)");
+      checkEval("or", "true", "~ (3 < 2) | first(empty)");
+      String[] errors = { "x", "1 + true", "first(empty)", "(map x to x)(1, 2)", "let x := y; y := 1; in x", 
+                          "1 / 0", "if 1 then 2 else 3", "let f := 3; in f(4)" };
+      for (String program : errors) {
+        try {
+          new Interpreter(new StringReader(program)).callByValue();
+          fail("no EvalException on " + program);
+        } catch (EvalException e) { }
+      }
+    } catch (Exception e) {
+      fail("interpreter threw " + e);
+    }
+  } //end of func
+
+  public void testLazyEvaluation() {
+    try {
+      String[] programs = { Corpus.fib(8), Corpus.list(50), Corpus.SMALL, Corpus.shared(100), 
+                            "let add := map x to map y to x + y; f := add(10); in cons(f(1), cons(f(2), empty))" };
+      for (String program : programs) {
+        Interpreter interpreter = new Interpreter(new StringReader(program));
+        String value = interpreter.callByValue().toString();
+        assertEquals("name " + program, value, interpreter.callByName().toString());
+        assertEquals("need " + program, value, interpreter.callByNeed().toString());
+      }
+      String[] lazy = { "let k := map x, y to x; in k(1, 1 / 0)", "let x := y + 0; y := 1; in x", 
+                        "let z := first(empty); in 1" };
+      for (String program : lazy) {
+        Interpreter interpreter = new Interpreter(new StringReader(program));
+        assertEquals("name " + program, "1", interpreter.callByName().toString());
+        assertEquals("need " + program, "1", interpreter.callByNeed().toString());
+        try {
+          interpreter.callByValue();
+          fail("no EvalException on " + program);
+        } catch (EvalException e) { }
+      }
+      try {
+        new Interpreter(new StringReader("let x := x + 1; in x")).callByNeed();
+        fail("no EvalException on a self-referential definition");
+      } catch (EvalException e) { }
+    } catch (Exception e) {
+      fail("lazyEvaluation threw " + e);
+    }
+  } //end of func
+
+  public void testTailCalls() {
+    try {
+      // runs on the test thread, so the loop must run in constant Java stack
+      Interpreter loop = new Interpreter(new StringReader(Corpus.loop(10000000))).stackSize(0).tailCalls(true);
+      assertEquals("loop", "10000000", loop.callByValue().toString());
+      Interpreter even = new Interpreter(new StringReader(
+        "let even := map n to if n = 0 then true else odd(n - 1); odd := map n to if n = 0 then false else even(n - 1);" + 
+        "in let x := even(100001); in cons(x, empty)")).stackSize(0).tailCalls(true);
+      assertEquals("mutual recursion", "(false)", even.callByValue().toString());
+      assertEquals("need", "(false)", even.callByNeed().toString());
+      checkEval("not tail", "500500", Corpus.list(1000));
+      assertEquals("list", "500500", 
+                   new Interpreter(new StringReader(Corpus.list(1000))).tailCalls(true).callByValue().toString());
+    } catch (Exception e) {
+      fail("tailCalls threw " + e);
+    }
+  } //end of func
+
+  public void testChunkedLists() {
+    JamList l = JamEmpty.ONLY;
+    for (int i = 10000; i > 0; i--) l = l.cons(IntConstant.valueOf(i));
+    assertTrue("chunked", l instanceof ChunkedJamCons);
+    assertEquals("length", 10000, ((ChunkedJamCons) l).length());
+    assertEquals("nth", IntConstant.valueOf(5001), ((ChunkedJamCons) l).nth(5000));
+    JamList linked = JamEmpty.ONLY;
+    for (int i = 10000; i > 0; i--) linked = new JamCons(IntConstant.valueOf(i), linked);
+    assertEquals("equals linked", linked, l);
+    assertEquals("hashCode", linked.hashCode(), l.hashCode());
+    // consing twice onto the same list must not disturb either result
+    JamList rest = ((JamCons) l).rest();
+    JamCons a = rest.cons(IntConstant.valueOf(-1));
+    JamCons b = rest.cons(IntConstant.valueOf(-2));
+    assertEquals("branch a", IntConstant.valueOf(-1), a.first());
+    assertEquals("branch b", IntConstant.valueOf(-2), b.first());
+    assertEquals("shared rest", a.rest(), b.rest());
+    assertEquals("original", IntConstant.valueOf(1), ((JamCons) l).first());
+    checkEval("append", "(1 2 3 4)",
+              "let append := map x, y to if x = empty then y else cons(first(x), append(rest(x), y));" +
+              "    l := cons(2, empty); in append(cons(1, l), cons(3, cons(4, empty)))");
+  } //end of func
+
+  public void testBigLists() throws java.io.IOException {
+    // runs on the test thread, so none of these may recurse once per element
+    final int n = 10000000;
+    JamList chunked = JamEmpty.ONLY, linked = JamEmpty.ONLY;
+    for (int i = n - 1; i >= 0; i--) {
+      chunked = chunked.cons(IntConstant.valueOf(i % 100));
+      linked = new JamCons(IntConstant.valueOf(i % 100), linked);
+    }
+    assertTrue("equals", chunked.equals(linked) && linked.equals(chunked));
+    final long[] length = new long[1];
+    Appendable counter = new Appendable() {
+      public Appendable append(CharSequence cs) { length[0] += cs.length(); return this; }
+      public Appendable append(CharSequence cs, int start, int end) { length[0] += end - start; return this; }
+      public Appendable append(char c) { length[0]++; return this; }
+    };
+    chunked.print(counter);
+    // every 100 elements have 10 one digit and 90 two digit numbers
+    assertEquals("print", 2 + (n - 1) + n / 100 * (10 + 90 * 2), length[0]);
+    PureList<JamVal> twice = linked.append(chunked);
+    int count = 0;
+    for (PureList<JamVal> l = twice; l instanceof Cons; l = ((Cons<JamVal>) l).rest()) count++;
+    assertEquals("append", 2 * n, count);
+    JamList nested = JamEmpty.ONLY;
+    for (int i = 0; i < 100000; i++) nested = JamEmpty.ONLY.cons(nested);
+    assertEquals("nested", 2 * 100001, nested.toString().length());
+    assertEquals("toStringHelp", " 1 (2) ()", 
+                 JamEmpty.ONLY.cons(JamEmpty.ONLY).cons(JamEmpty.ONLY.cons(IntConstant.valueOf(2)))
+                              .cons(IntConstant.valueOf(1)).toStringHelp());
+  } //end of func
+
+  public void testHashConsing() {
+    HashConsingFactory nodes = new HashConsingFactory();
+    String program = "let f := map l to first(rest(l)) + (x + 1); x := 2;\n" +
+                     "in f(cons(x + 1, cons(x + 1, empty))) * (x + 1)";
+    Let let = (Let) new Parser(program.toCharArray()).nodes(nodes).parse();
+    BinOpApp body = (BinOpApp) let.body();
+    BinOpApp fBody = (BinOpApp) ((Map) let.defs()[0].rhs()).body();
+    assertSame("x + 1", fBody.arg2(), body.arg2());
+    assertEquals("unparse", Unparser.toString(new Parser(program.toCharArray()).parse()), let.toString());
+    SymbolTable symbols = new SymbolTable();
+    AST a = new Parser(program.toCharArray(), symbols).nodes(nodes).parse();
+    AST b = new Parser(program.toCharArray(), symbols).nodes(nodes).parseIteratively();
+    assertSame("shared table", a, b);
+    assertNotSame("lexer's own variables", let, a);
+    assertEquals("eval", "18", new Interpreter(a).callByValue().toString());
+
+    // the entries of collected nodes are removed
+    HashConsingFactory fresh = new HashConsingFactory();
+    AST big = new Parser(JamGenerator.program(3, 1 << 16).toCharArray()).nodes(fresh).parse();
+    assertTrue("entries", fresh.size() > 1000);
+    fresh.clear();
+    assertEquals("entries after clear", 0, fresh.size());
+    assertEquals("parse after clear", let.toString(), new Parser(program.toCharArray()).nodes(fresh).parse().toString());
+
+    // the table does not keep the children of a dropped AST alive; System.gc() is only a hint, so this is checked
+    // only if the root is collected
+    big = new Parser(program.toCharArray()).nodes(fresh).parse();
+    java.lang.ref.WeakReference<AST> root = new java.lang.ref.WeakReference<AST>(big);
+    java.lang.ref.WeakReference<AST> child = new java.lang.ref.WeakReference<AST>(((Let) big).defs()[0].rhs());
+    big = null;
+    if (collect(root)) assertTrue("child collected with its root", collect(child));
+  } //end of func
+
+  /** Returns whether the referent of ref is collected within 10 seconds of requesting collections */
+  private static boolean collect(java.lang.ref.WeakReference<?> ref) {
+    for (int i = 0; i < 500 && ref.get() != null; i++) {
+      System.gc();
+      try { Thread.sleep(20); }
+      catch (InterruptedException e) { break; }
+    }
+    return ref.get() == null;
+  }
+
+  public void testParseCache() throws IOException {
+    File directory = java.nio.file.Files.createTempDirectory("jam-cache").toFile();
+    try {
+      ParseCache cache = new ParseCache(2, directory);
+      String[] programs = { Corpus.SMALL, Corpus.fib(10), Corpus.list(5) };
+      AST small = cache.parse(programs[0]);
+      assertSame("memory hit", small, cache.parse(programs[0]));
+      cache.parse(programs[1]);
+      cache.parse(programs[2]);  // evicts programs[0]
+      assertEquals("evictions", 1, cache.evictions());
+      AST fromDisk = cache.parse(programs[0]);
+      assertNotSame("disk hit", small, fromDisk);
+      assertEquals("disk hit", small.toString(), fromDisk.toString());
+      assertEquals("counters", "1 1 3 3", cache.hits() + " " + cache.diskHits() + " " + cache.misses() + " " + 
+                   cache.diskWrites());
+      assertEquals("fresh cache", "55", new Interpreter(new ParseCache(1, directory).parse(programs[1])).callByValue()
+                                                 .toString());
+      // a file holding another program's AST under this program's name is a miss
+      for (File f : directory.listFiles()) f.delete();
+      String victim = "let x := 1; in x + 1000000 // ok";
+      new ParseCache(1, directory).parse("      let y := 6; in y * 7 //abcd");
+      File forged = directory.listFiles()[0];
+      java.nio.file.Files.copy(forged.toPath(), new File(directory, ParseCache.fileName(victim.toCharArray())).toPath());
+      ParseCache fresh = new ParseCache(1, directory);
+      assertEquals("forged file", "let x := 1; in (x + 1000000)", fresh.parse(victim).toString());
+      assertEquals("forged file", "0 1", fresh.diskHits() + " " + fresh.misses());
+      // a truncated file is a miss and is replaced
+      File file = new File(directory, ParseCache.fileName(victim.toCharArray()));
+      byte[] contents = java.nio.file.Files.readAllBytes(file.toPath());
+      java.nio.file.Files.write(file.toPath(), java.util.Arrays.copyOf(contents, 40));
+      fresh = new ParseCache(1, directory);
+      assertEquals("truncated file", "let x := 1; in (x + 1000000)", fresh.parse(victim).toString());
+      assertEquals("truncated file", "0 1 1", fresh.diskHits() + " " + fresh.misses() + " " + fresh.diskWrites());
+      assertEquals("rewritten file", "let x := 1; in (x + 1000000)", new ParseCache(1, directory).parse(victim)
+                                                                         .toString());
+    } finally {
+      for (File f : directory.listFiles()) f.delete();
+      directory.delete();
+    }
+  } //end of func
+
+  public void testASTCodec() throws IOException {
+    String[] programs = { Corpus.SMALL, Corpus.fib(10), Corpus.wide(100), "let x := -2147483647; in 2147483647 + x",
+                          JamGenerator.program(7, 1 << 14), "x", "cons", "7" };
+    for (String program : programs) {
+      AST ast = new Parser(program.toCharArray()).parse();
+      AST decoded = ASTCodec.decode(ASTCodec.encode(ast));
+      assertEquals("round trip", ast.toString(), decoded.toString());
+    }
+    // sharing survives encoding
+    String program = "let f := map l to first(rest(l)) + (x + 1); x := 2;\n" +
+                     "in f(cons(x + 1, cons(x + 1, empty))) * (x + 1)";
+    Let let = (Let) ASTCodec.decode(ASTCodec.encode(new Parser(program.toCharArray()).nodes(new HashConsingFactory())
+                                                      .parse()));
+    assertSame("shared", ((BinOpApp) ((Map) let.defs()[0].rhs()).body()).arg2(), ((BinOpApp) let.body()).arg2());
+    assertEquals("eval", "18", new Interpreter(let).callByValue().toString());
+    // neither encoding nor decoding recurses
+    AST deep = new Parser(Corpus.deep(100000).toCharArray()).parseIteratively();
+    byte[] bytes = ASTCodec.encode(deep);
+    assertEquals("deep", bytes.length, ASTCodec.encode(ASTCodec.decode(bytes)).length);
+    bytes[4] = 99;
+    try {
+      ASTCodec.decode(bytes);
+      fail("decoded another version");
+    } catch (IOException e) { }
+    try {
+      ASTCodec.decode(java.util.Arrays.copyOf(ASTCodec.encode(let), 20));
+      fail("decoded a truncated encoding");
+    } catch (IOException e) { }
+    // counts are checked against the bytes left before anything is allocated
+    byte v = ASTCodec.VERSION;
+    byte[][] corrupt = { { 'J', 'A', 'S', 'T', v, -1, -1, -1, -1, 7 }, { 'J', 'A', 'S', 'T', v, 0, -1, -1, -1, -1, 7 },
+                         { 'J', 'A', 'S', 'T', v, 0, 0, 1, ASTCodec.MAP, 1, -1, -1, -1, -1, 7 } };
+    for (byte[] c : corrupt) {
+      try {
+        ASTCodec.decode(c);
+        fail("decoded a corrupt count");
+      } catch (IOException e) { }
+    }
+  } //end of func
+
+  public void testParallelLexer() throws IOException {
+    String[] programs = { Corpus.SMALL, Corpus.wide(200), JamGenerator.program(3, 1 << 14),
+                          "x <\n= y >\n  // c\n= z !\n// c\n\n= w;\nv :\n= 1\n\n", "a\n!\nb", "1 + 2\n#\n3 +" };
+    java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(3);
+    try {
+      for (String program : programs) {
+        String expected = lexAll(new CharLexer(program.toCharArray()));
+        for (int chunkSize = 1; chunkSize < 64; chunkSize += 5) {
+          String actual;
+          try { actual = java.util.Arrays.toString(ParallelLexer.lex(program.toCharArray(), new SymbolTable(), pool, chunkSize)); }
+          catch (ParseException e) { actual = "ParseException: " + e.getMessage(); }
+          assertEquals(program + " in chunks of " + chunkSize, expected, actual);
+        }
+        java.nio.ByteBuffer bytes = java.nio.ByteBuffer.wrap(program.getBytes("UTF-8"));
+        String actual;
+        try { actual = java.util.Arrays.toString(ParallelLexer.lex(bytes, new SymbolTable(), pool, 16)); }
+        catch (ParseException e) { actual = "ParseException: " + e.getMessage(); }
+        assertEquals(program + " in bytes", expected, actual);
+      }
+      Token[] tokens = ParallelLexer.lex(Corpus.fib(10).toCharArray(), new SymbolTable(), pool, 8);
+      assertEquals("parse", "55", new Interpreter(new Parser(new TokenArray(tokens)).parse()).callByValue().toString());
+      try {
+        ParallelLexer.lex(Corpus.SMALL.toCharArray(), new SymbolTable(), pool, 0);
+        fail("chunk size 0");
+      } catch (IllegalArgumentException e) { }
+    } finally {
+      pool.shutdown();
+    }
+  } //end of func
+
+  public void testPackedTokens() {
+    String[] programs = { Corpus.SMALL, Corpus.wide(100), Corpus.deep(50), Corpus.fib(10),
+                          JamGenerator.program(5, 1 << 14), "f()(g)(1, 2147483647, x)", "let x := 1; y := x; in x", "map to 1", "1 + # 2", "1 2",
+                          "let x := 1 in x", "f(1, 2", "map x, 3 to x", "if 1 then 2", "(1 + 2", "- * 3", "let in",
+                          "3 ~ 4", "x !y", "" };
+    for (String program : programs) {
+      char[] text = program.toCharArray();
+      PackedTokens packed = new CharLexer(text).lexPacked();
+      assertEquals(program + " tokens", lexAll(new CharLexer(text)), lexAll(packed.source()));
+      for (int i = 0; i < packed.size(); i++) {
+        String token = packed.token(i).toString();
+        assertTrue(program + " start of " + token, program.startsWith(token.substring(0, 1), packed.start(i)));
+      }
+      assertEquals(program, parseAll(new Parser(text)), parseAll(new Parser(packed)));
+    }
+  } //end of func
+
+  public void testLookahead() {
+    String program = JamGenerator.program(9, 1 << 12);
+    java.util.ArrayList<Token> tokens = new java.util.ArrayList<Token>();
+    CharLexer reference = new CharLexer(program.toCharArray());
+    for (Token t = reference.readToken(); t != null; t = reference.readToken()) tokens.add(t);
+    int n = tokens.size();
+
+    Lexer in = new Lexer(new StringReader(program));
+    for (int k = 0; k < 40; k++) assertEquals("peek " + k, tokens.get(k).toString(), in.peek(k).toString());
+    assertNull("past the end", in.peek(n + 5));
+    assertSame("peek", in.peek(n - 1), in.peek(n - 1));
+
+    // nested marks retaining more tokens than the initial ring holds
+    in.mark();
+    for (int i = 0; i < 100; i++) assertEquals("read " + i, tokens.get(i).toString(), in.readToken().toString());
+    in.mark();
+    Token t100 = in.readToken();
+    in.readToken();
+    in.reset();
+    assertSame("reset to inner mark", t100, in.readToken());
+    in.reset();
+    for (int i = 0; i < 50; i++) assertEquals("reread " + i, tokens.get(i).toString(), in.readToken().toString());
+    in.mark();
+    assertEquals("peek after mark", tokens.get(52).toString(), in.peek(2).toString());
+    in.unmark();
+    for (int i = 50; i < n; i++) assertEquals("read " + i, tokens.get(i).toString(), in.readToken().toString());
+    assertNull("end", in.readToken());
+    try {
+      in.reset();
+      fail("reset without mark");
+    } catch (IllegalStateException e) { }
+    try {
+      in.peek(-1);
+      fail("peek(-1)");
+    } catch (IllegalArgumentException e) { }
+
+    // backtracking does not lex the tokens again, which would make new IntConstants outside the cache
+    in = new Lexer(new StringReader("100000 200000 c"));
+    in.mark();
+    Token a = in.readToken(), b = in.readToken();
+    in.reset();
+    assertSame("a", a, in.readToken());
+    assertSame("b", b, in.readToken());
+    assertEquals("parse", "((a + 1) * b)", new Parser(new Lexer(new StringReader("(a + 1) * b"))).parse().toString());
+  } //end of func
+
+  public void testSpans() {
+    String program = "let f := map x to if x < 1\n   then 0 else x;\nin f(2) * -(3)";
+    SourceSpans spans = new SourceSpans();
+    Let let = (Let) new Parser(program.toCharArray()).spans(spans).parse();
+    Def def = let.defs()[0];
+    Map map = (Map) def.rhs();
+    BinOpApp times = (BinOpApp) let.body();
+    Object[] nodes = { let, def, map, map.body(), ((If) map.body()).test(), times, times.arg1(), times.arg2() };
+    String[] texts = { program, "f := map x to if x < 1\n   then 0 else x;", "map x to if x < 1\n   then 0 else x",
+                       "if x < 1\n   then 0 else x", "x < 1", "f(2) * -(3)", "f(2)", "-(3)" };
+    for (int i = 0; i < nodes.length; i++) {
+      assertEquals(texts[i], texts[i], program.substring(spans.start(nodes[i]), spans.end(nodes[i])));
+    }
+    assertEquals("spans", nodes.length, spans.size());
+    assertEquals("leaf", -1, spans.start(def.lhs()));
+    assertEquals("same AST", new Parser(program.toCharArray()).parse().toString(), let.toString());
+
+    String[] errors = { "let x := 1;\n in x +\n  then", "1 +\n  #", "f(1\n\n  2)", "(1 <\r\n 2" };
+    String[] positions = { "3:3", "2:3", "3:3", "2:3" };
+    for (int i = 0; i < errors.length; i++) {
+      String plain = parseAll(new Parser(errors[i].toCharArray()));
+      try {
+        new Parser(errors[i].toCharArray()).spans(new SourceSpans()).parse();
+        fail(errors[i]);
+      } catch (ParseException e) {
+        assertEquals(errors[i], plain.replace("ParseException: ", positions[i] + ": "), e.getMessage());
+        assertEquals(errors[i], positions[i], e.line() + ":" + e.column());
+      }
+    }
+    try {
+      new Parser(new StringReader("1")).spans(new SourceSpans());
+      fail("Lexer");
+    } catch (IllegalArgumentException e) { }
+  } //end of func
+
+  public void testRecovery() {
+    String[] errors = { "let x := 1 +; y := (2 * ); in if x then else y", "f(1, +, 3) + g(", "map x, 3 to x + 1",
+                        "if 1 # 2 then 3 else )", "1 2 3", "(1 + 2 3) * 4", "let x = 1; in x", "1 + ~",
+                        "1 + ; 2 + * 3", "1 ) 2 +", "1 ) 2 ) (3 + ) in 4 )", "1 2 ; 3 +" };
+    String[] asts = { "let x := <error>; y := <error>; in if x then <error> else y", "<error>", "map  to (x + 1)",
+                      "<error>", "1", "((1 + 2) * 4)", "let x := <error>; in x", "<error>", "<error>", "1", "1", "1" };
+    int[] counts = { 3, 2, 1, 3, 1, 1, 1, 1, 2, 2, 5, 2 };
+    for (int i = 0; i < errors.length; i++) {
+      java.util.List<ParseException> diagnostics = new java.util.ArrayList<ParseException>();
+      AST ast = new Parser(errors[i].toCharArray()).recover(diagnostics).parse();
+      assertEquals(errors[i], asts[i], ast.toString());
+      assertEquals(errors[i] + " " + diagnostics, counts[i], diagnostics.size());
+      // the first diagnostic is the error reported in fail-fast mode
+      assertEquals(errors[i], parseAll(new Parser(errors[i].toCharArray())),
+                   "ParseException: " + diagnostics.get(0).getMessage());
+    }
+
+    java.util.List<ParseException> diagnostics = new java.util.ArrayList<ParseException>();
+    new Parser("let x := 1 +;\n    y := )\nin x".toCharArray()).spans(new SourceSpans()).recover(diagnostics).parse();
+    assertEquals("positions", "1:13 2:10", diagnostics.get(0).line() + ":" + diagnostics.get(0).column() + " " +
+                 diagnostics.get(1).line() + ":" + diagnostics.get(1).column());
+
+    String program = JamGenerator.program(7, 1 << 14);
+    diagnostics.clear();
+    assertEquals("valid", new Parser(program.toCharArray()).parse().toString(),
+                 new Parser(new StringReader(program)).recover(diagnostics).parse().toString());
+    assertEquals("no errors", 0, diagnostics.size());
+
+    // a character from 128 to 255 is skipped whole in a mapped UTF-8 file
+    try {
+      String latin1 = "1 + \u00e9 2 ! \u00e9 3";
+      File file = File.createTempFile("latin1", ".jam");
+      file.deleteOnExit();
+      Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+      out.write(latin1);
+      out.close();
+      java.util.List<ParseException> expected = new java.util.ArrayList<ParseException>();
+      assertEquals("mapped latin1", new Parser(latin1.toCharArray()).recover(expected).parse().toString(),
+                   Parser.newMappedParser(file.getPath()).recover(diagnostics).parse().toString());
+      assertEquals("mapped latin1 diagnostics", expected.toString(), diagnostics.toString());
+      MappedLexer lexer = new MappedLexer(file.getPath());
+      assertEquals("mapped latin1 tokens", "1 +", lexer.readToken() + " " + lexer.readToken());
+      try {
+        lexer.readToken();
+        fail("mapped latin1");
+      } catch (ParseException e) { }
+      assertEquals("after the error", IntConstant.valueOf(2), lexer.readToken());
+    } catch (IOException e) {
+      fail("mapped latin1 threw " + e);
+    }
+    diagnostics.clear();
+
+    // many errors are recovered from in linear time
+    StringBuilder many = new StringBuilder("let ");
+    for (int i = 0; i < 100000; i++) many.append("x").append(i).append(" := (1 + );\n");
+    AST ast = new Parser(many.append("in x0").toString().toCharArray()).recover(diagnostics).parse();
+    assertEquals("many", 100000, diagnostics.size());
+    assertTrue("error node", ((Let) ast).defs()[99999].rhs() instanceof ErrorNode);
+    try {
+      new Interpreter(ast).callByValue();
+      fail("evaluated an ErrorNode");
+    } catch (EvalException e) { }
+
+    // a failing Reader ends recovery instead of being retried forever
+    diagnostics.clear();
+    Reader failing = new Reader() {
+      public int read(char[] buf, int off, int len) throws IOException { throw new IOException("disk on fire"); }
+      public void close() { }
+    };
+    try {
+      new Parser(failing).recover(diagnostics).parse();
+      fail("failing reader");
+    } catch (ParseException e) {
+      assertTrue("cause", e.getCause() instanceof IOException);
+    }
+    assertEquals("failing reader diagnostics", 0, diagnostics.size());
+  } //end of func
+
+  /** Returns the AST parsed by parser as a String, or the ParseException it throws */
+  private static String parseAll(Parser parser) {
+    try { return parser.parse().toString(); }
+    catch (ParseException e) { return "ParseException: " + e.getMessage(); }
+  }
+
+  /** Returns the tokens of in as a String, or the ParseException it throws */
+  private static String lexAll(TokenSource in) {
+    java.util.ArrayList<Token> tokens = new java.util.ArrayList<Token>();
+    try {
+      for (Token t = in.readToken(); t != null; t = in.readToken()) tokens.add(t);
+    } catch (ParseException e) {
+      return "ParseException: " + e.getMessage();
+    }
+    return tokens.toString();
+  }
+
+  public void testCompiler() {
+    try {
+      String[] programs = { Corpus.fib(15), Corpus.list(1000), Corpus.SMALL, Corpus.loop(1000), 
+                            "let add := map x to map y to x + y; f := add(10); in cons(f(1), cons((add(10))(2), empty))",
+                            "let x := y; y := 1; in x", "(map x to x)(1, 2)", "let f := 3; in f(4)", "x", "100000 * 7",
+                            "~ (3 < 2) | first(empty)", "cons(arity(map x, y to x), cons(-5, cons(rest, empty)))",
+                            "let b := true; in b + 1 / 0", "let b := true; in b / (1 - 1)", "(1 + 2) / (3 - 3)",
+                            "let x := 40000; in if x * x > 1 + - x then (x * x) / 7 else +(x) - true" };
+      for (String program : programs) checkCompiled(new Interpreter(new StringReader(program)));
+      for (long seed = 0; seed < 10; seed++) {
+        StringWriter program = new StringWriter();
+        new JamGenerator(seed).size(1024).identifiers(6).generate(program);
+        checkCompiled(new Interpreter(new StringReader(program.toString())));
+      }
+    } catch (Exception e) {
+      fail("compiler threw " + e);
+    }
+  } //end of func
+
+  /** Checks that interpreter gives the same result or error when interpreting, linking and compiling its program. */
+  protected void checkCompiled(Interpreter interpreter) {
+    String expected, actual, linked;
+    try { expected = interpreter.callByValue().toString(); }
+    catch (EvalException e) { expected = "EvalException: " + e.getMessage(); }
+    try { actual = interpreter.callByValueCompiled().toString(); }
+    catch (EvalException e) { actual = "EvalException: " + e.getMessage(); }
+    try { linked = interpreter.callByValueLinked().toString(); }
+    catch (EvalException e) { linked = "EvalException: " + e.getMessage(); }
+    assertEquals(interpreter.program().toString(), expected, actual);
+    assertEquals(interpreter.program().toString(), expected, linked);
+  }
 }
@@ -0,0 +1,674 @@
+/** Throughput benchmarks for the Jam front end, run from the command line:
+  *
+  *   java Bench                runs all of the in-memory benchmarks below
+  *   java Bench lex            token throughput of Lexer.readToken() and CharLexer.readToken()
+  *   java Bench parse          Parser.parse() and Parser.parseIteratively() on small, wide, deep and random
+  *                             (JamGenerator) programs
+  *   java Bench unparse        AST toString() on the same programs
+  *   java Bench alloc          bytes allocated per AST node by Parser.parse() and Parser.parseIteratively()
+  *   java Bench eval           Interpreter.callByValue() on recursive programs: fib, building and summing a list
+  *                             with cons, and a tail recursive loop with and without proper tail calls
+  *   java Bench compile        the visitor interpreter against programs linked by ClosureCompiler and compiled by
+  *                             JamCompiler on the eval programs, and the time taken to compile them
+  *   java Bench arith          time and bytes allocated by the interpreter, linked and compiled programs on a loop of
+  *                             nested integer arithmetic and comparisons
+  *   java Bench lists          retained bytes per element and traversal speed of lists of 1000000 elements built as
+  *                             linked JamCons cells and as ChunkedJamConses
+  *   java Bench cache          ParseCache memory and disk hits against parsing the random program
+  *   java Bench codec          size of the ASTCodec encoding, and encoding and decoding it against parsing through
+  *                             Lexer and CharLexer, on the random, wide and deep programs
+  *   java Bench plex           token throughput of ParallelLexer on the random program of 16M chars with 1 to
+  *                             availableProcessors workers, against sequential CharLexer
+  *   java Bench packed         time and bytes allocated by lexing the random program into Tokens and into PackedTokens,
+  *                             and by parsing it from each
+  *   java Bench spans          time and bytes allocated by Parser.parse() on the random and wide programs without and
+  *                             with span tracking
+  *   java Bench recover        Parser.parse() in fail-fast and recovery mode on the random program, valid and with an
+  *                             error at the end, and in recovery mode on programs with 10000 to 1000000 errors
+  *   java Bench lazy           time and bytes allocated by the call-by-value, call-by-name and call-by-need modes of
+  *                             Interpreter on programs that build big lists which are never or repeatedly used
+  *   java Bench file <file>    compares lexing a program file through Lexer (the FileReader path used by
+  *                             Parser(String)), through CharLexer after reading the file into memory, and in place
+  *                             through MappedLexer; reports bytes per second for each
+  *
+  * The in-memory benchmarks run on the programs built by Corpus and a seeded JamGenerator, which are deterministic,
+  * so numbers are comparable across builds.  Each measurement is repeated after a warm up and the best time is
+  * reported, since the slower runs are usually disturbed by JIT compilation or garbage collection.
+  */
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringReader;
+
+class Bench {
+
+  static final int WARMUP = 5;
+  static final int RUNS = 10;
+  static final int CODEC_WARMUP = 60;
+
+  /** A benchmarked operation; returns a result that is consumed so that the work cannot be optimized away. */
+  interface Task {
+    long run() throws IOException;
+  }
+
+  /** Sink for benchmark results. */
+  static long blackhole;
+
+  public static void main(final String[] args) throws InterruptedException {
+    // the lazy benchmarks evaluate on the benchmark thread, so that its allocation can be measured, which needs the
+    // big stack of the interpreter's evaluation thread
+    Thread thread = new Thread(null, new Runnable() {
+      public void run() {
+        try { bench(args); }
+        catch (IOException e) { throw new RuntimeException(e); }
+      }
+    }, "Bench", Interpreter.STACK_SIZE);
+    thread.start();
+    thread.join();
+  }
+
+  static void bench(String[] args) throws IOException {
+    String which = args.length == 0 ? "all" : args[0];
+    if (which.equals("file") && args.length == 2) lexFile(args[1]);
+    else if (which.equals("lex")) lex();
+    else if (which.equals("parse")) parse();
+    else if (which.equals("unparse")) unparse();
+    else if (which.equals("alloc")) alloc();
+    else if (which.equals("eval")) eval();
+    else if (which.equals("lazy")) lazy();
+    else if (which.equals("compile")) compile();
+    else if (which.equals("arith")) arith();
+    else if (which.equals("lists")) lists();
+    else if (which.equals("cache")) cache();
+    else if (which.equals("codec")) codec();
+    else if (which.equals("plex")) plex();
+    else if (which.equals("packed")) packed();
+    else if (which.equals("spans")) spans();
+    else if (which.equals("recover")) recover();
+    else if (which.equals("all")) {
+      lex();
+      parse();
+      unparse();
+      alloc();
+      eval();
+      lazy();
+      compile();
+      arith();
+      lists();
+      cache();
+      codec();
+      plex();
+      packed();
+      spans();
+      recover();
+    }
+    else System.out.println("Usage: java Bench [lex | parse | unparse | alloc | eval | lazy | compile | arith | " +
+                            "lists | cache | codec | plex | packed | spans | recover | " +
+                            "file <file>]");
+  }
+
+  /** Measures token throughput of the in-memory lexing engines. */
+  static void lex() throws IOException {
+    String[] names = { "wide", "deep" };
+    String[] programs = { Corpus.wide(20000), Corpus.deep(1000) };
+    for (int i = 0; i < programs.length; i++) {
+      final String program = programs[i];
+      final char[] text = program.toCharArray();
+      final long tokens = countTokens(new CharLexer(text));
+      measure("Lexer.readToken " + names[i], tokens, "tokens", new Task() {
+        public long run() { return countTokens(new Lexer(new StringReader(program))); }
+      });
+      measure("CharLexer.readToken " + names[i], tokens, "tokens", new Task() {
+        public long run() { return countTokens(new CharLexer(text)); }
+      });
+    }
+  }
+
+  /** Measures parsing of the corpus programs with both parsing modes. */
+  static void parse() throws IOException {
+    String[] names = { "small", "wide", "deep", "random" };
+    String[] programs = { Corpus.SMALL, Corpus.wide(20000), Corpus.deep(1000), JamGenerator.program(42, 1 << 20) };
+    int[] repeats = { 10000, 1, 100, 1 };
+    for (int i = 0; i < programs.length; i++) {
+      final char[] text = programs[i].toCharArray();
+      final int n = repeats[i];
+      final long tokens = n * countTokens(new CharLexer(text));
+      measure("parse " + names[i], tokens, "tokens", new Task() {
+        public long run() {
+          long h = 0;
+          for (int k = 0; k < n; k++) h += new Parser(text).parse().hashCode();
+          return h;
+        }
+      });
+      measure("parseIteratively " + names[i], tokens, "tokens", new Task() {
+        public long run() {
+          long h = 0;
+          for (int k = 0; k < n; k++) h += new Parser(text).parseIteratively().hashCode();
+          return h;
+        }
+      });
+      measure("parse hash-consed " + names[i], tokens, "tokens", new Task() {
+        public long run() {
+          HashConsingFactory nodes = new HashConsingFactory();
+          long h = 0;
+          for (int k = 0; k < n; k++) h += new Parser(text, SymbolTable.SHARED).nodes(nodes).parse().hashCode();
+          return h;
+        }
+      });
+    }
+  }
+
+  /** Measures AST toString() on the corpus programs. */
+  static void unparse() throws IOException {
+    String[] names = { "small", "wide", "deep", "random" };
+    String[] programs = { Corpus.SMALL, Corpus.wide(20000), Corpus.deep(1000), JamGenerator.program(42, 1 << 20) };
+    int[] repeats = { 10000, 1, 100, 1 };
+    for (int i = 0; i < programs.length; i++) {
+      final AST ast = new Parser(programs[i].toCharArray()).parse();
+      final int n = repeats[i];
+      long chars = n * (long) ast.toString().length();
+      measure("toString " + names[i], chars, "chars", new Task() {
+        public long run() {
+          long h = 0;
+          for (int k = 0; k < n; k++) h += ast.toString().length();
+          return h;
+        }
+      });
+    }
+  }
+
+  /** Measures the bytes allocated per AST node while parsing the corpus programs (with CharLexer). */
+  static void alloc() throws IOException {
+    String[] names = { "small", "wide", "deep", "random" };
+    String[] programs = { Corpus.SMALL, Corpus.wide(20000), Corpus.deep(1000), JamGenerator.program(42, 1 << 20) };
+    for (int i = 0; i < programs.length; i++) {
+      final char[] text = programs[i].toCharArray();
+      long nodes = countNodes(new Parser(text).parse());
+      measureAllocation("parse " + names[i], nodes, "node", new Task() {
+        public long run() { return new Parser(text).parse().hashCode(); }
+      });
+      measureAllocation("parseIteratively " + names[i], nodes, "node", new Task() {
+        public long run() { return new Parser(text).parseIteratively().hashCode(); }
+      });
+    }
+  }
+
+  /** Returns the number of composite nodes, leaves and definitions in ast (counting shared leaves once per 
+    * occurrence). */
+  static long countNodes(AST ast) {
+    final java.util.ArrayDeque<AST> work = new java.util.ArrayDeque<AST>();
+    final long[] count = new long[1];
+    ASTVisitor<Void> children = new ASTVisitor<Void>() {
+      public Void forBoolConstant(BoolConstant b) { return null; }
+      public Void forIntConstant(IntConstant i) { return null; }
+      public Void forEmptyConstant(EmptyConstant n) { return null; }
+      public Void forJamEmpty(JamEmpty je) { return null; }
+      public Void forVariable(Variable v) { return null; }
+      public Void forPrimFun(PrimFun f) { return null; }
+      public Void forErrorNode(ErrorNode e) { return null; }
+      public Void forUnOpApp(UnOpApp u) { work.push(u.arg()); return null; }
+      public Void forBinOpApp(BinOpApp b) { work.push(b.arg1()); work.push(b.arg2()); return null; }
+      public Void forApp(App a) {
+        work.push(a.rator());
+        for (AST arg : a.args()) work.push(arg);
+        return null;
+      }
+      public Void forMap(Map m) {
+        count[0] += m.vars().length;
+        work.push(m.body());
+        return null;
+      }
+      public Void forIf(If i) { work.push(i.test()); work.push(i.conseq()); work.push(i.alt()); return null; }
+      public Void forLet(Let l) {
+        for (Def d : l.defs()) { count[0] += 2; work.push(d.rhs()); }
+        work.push(l.body());
+        return null;
+      }
+    };
+    work.push(ast);
+    while (! work.isEmpty()) {
+      count[0]++;
+      work.pop().accept(children);
+    }
+    return count[0];
+  }
+
+  /** Runs task WARMUP + RUNS times and reports the fewest bytes allocated by the current thread per unit in a run.
+    * Requires a JVM that supports com.sun.management.ThreadMXBean. */
+  static long measureAllocation(String name, long units, String unit, Task task) throws IOException {
+    com.sun.management.ThreadMXBean threads = 
+      (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+    long id = Thread.currentThread().getId();
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < WARMUP + RUNS; i++) {
+      long start = threads.getThreadAllocatedBytes(id);
+      blackhole += task.run();
+      long bytes = threads.getThreadAllocatedBytes(id) - start;
+      if (i >= WARMUP && bytes < best) best = bytes;
+    }
+    System.out.printf("%-32s %12d bytes %10.1f bytes/%s%n", name, best, (double) best / units, unit);
+    return best;
+  }
+
+  /** Measures the interpreter on recursive programs; fib is reported in Jam function calls per second and list
+    * building in list elements per second. */
+  static void eval() throws IOException {
+    final int n = 24;
+    // fib(n) makes 2 fib(n + 1) - 1 calls of fib
+    long a = 0, b = 1;
+    for (int i = 0; i <= n; i++) { long c = a + b; a = b; b = c; }
+    final Interpreter fib = new Interpreter(new StringReader(Corpus.fib(n)));
+    measure("callByValue fib(" + n + ")", 2 * a - 1, "calls", new Task() {
+      public long run() { return fib.callByValue().hashCode(); }
+    });
+    final int length = 2000;
+    final int repeats = 100;
+    final Interpreter list = new Interpreter(new StringReader(Corpus.list(length)));
+    measure("callByValue list(" + length + ")", (long) length * repeats, "elements", new Task() {
+      public long run() {
+        long h = 0;
+        for (int k = 0; k < repeats; k++) h += list.callByValue().hashCode();
+        return h;
+      }
+    });
+    final int iterations = 100000;
+    final Interpreter loop = new Interpreter(new StringReader(Corpus.loop(iterations)));
+    measure("callByValue loop(" + iterations + ")", iterations, "calls", new Task() {
+      public long run() { return loop.tailCalls(false).callByValue().hashCode(); }
+    });
+    measure("callByValue loop, tail calls", iterations, "calls", new Task() {
+      public long run() { return loop.tailCalls(true).callByValue().hashCode(); }
+    });
+  }
+
+  /** Compares Interpreter.callByValue() with Interpreter.callByValueLinked() and Interpreter.callByValueCompiled() on
+    * the eval programs. */
+  static void compile() throws IOException {
+    String[] names = { "fib(24)", "list(2000)", "loop(100000)" };
+    final String[] programs = { Corpus.fib(24), Corpus.list(2000), Corpus.loop(100000) };
+    for (int i = 0; i < programs.length; i++) {
+      final Interpreter interpreter = new Interpreter(new StringReader(programs[i])).stackSize(0);
+      measure("callByValue " + names[i], 1, "runs", new Task() {
+        public long run() { return interpreter.callByValue().hashCode(); }
+      });
+      measure("callByValueLinked " + names[i], 1, "runs", new Task() {
+        public long run() { return interpreter.callByValueLinked().hashCode(); }
+      });
+      measure("callByValueCompiled " + names[i], 1, "runs", new Task() {
+        public long run() { return interpreter.callByValueCompiled().hashCode(); }
+      });
+      final int k = i;
+      measure("JamCompiler.compile " + names[i], 1, "programs", new Task() {
+        public long run() { return JamCompiler.compile(new Parser(programs[k].toCharArray()).parse()).hashCode(); }
+      });
+    }
+  }
+
+  /** Compares the engines on arithmetic(100000), whose intermediate results mostly lie outside the IntConstant
+    * cache. */
+  static void arith() throws IOException {
+    final int n = 100000;
+    final Interpreter interpreter = new Interpreter(new StringReader(Corpus.arithmetic(n))).stackSize(0);
+    Task[] tasks = {
+      new Task() { public long run() { return interpreter.callByValue().hashCode(); } },
+      new Task() { public long run() { return interpreter.callByValueLinked().hashCode(); } },
+      new Task() { public long run() { return interpreter.callByValueCompiled().hashCode(); } }
+    };
+    String[] names = { "callByValue", "callByValueLinked", "callByValueCompiled" };
+    for (int i = 0; i < tasks.length; i++) {
+      measure(names[i] + " arithmetic", n, "iterations", tasks[i]);
+      measureAllocation(names[i] + " arithmetic", n, "iteration", tasks[i]);
+    }
+  }
+
+  /** Compares decoding the ASTCodec encoding of programs with parsing them.  Decoding a program is a few loops over
+    * small methods, which the JIT compiles only after tens of runs on one core, so every task here warms up for
+    * CODEC_WARMUP runs rather than WARMUP. */
+  static void codec() throws IOException {
+    String[] names = { "random", "wide", "deep" };
+    String[] programs = { JamGenerator.program(42, 1 << 20), Corpus.wide(20000), Corpus.deep(1000) };
+    for (int i = 0; i < programs.length; i++) {
+      final char[] text = programs[i].toCharArray();
+      final AST ast = new Parser(text).parse();
+      final java.nio.ByteBuffer bytes = java.nio.ByteBuffer.wrap(ASTCodec.encode(ast));
+      System.out.printf("%-32s %12d bytes %10.2f bytes/char%n", "encoding " + names[i], bytes.capacity(),
+                        (double) bytes.capacity() / text.length);
+      final String program = programs[i];
+      measure("parse (Lexer) " + names[i], text.length, "chars", CODEC_WARMUP, new Task() {
+        public long run() { return new Parser(new StringReader(program)).parse().hashCode(); }
+      });
+      measure("parse (CharLexer) " + names[i], text.length, "chars", CODEC_WARMUP, new Task() {
+        public long run() { return new Parser(text).parse().hashCode(); }
+      });
+      measure("encode " + names[i], text.length, "chars", CODEC_WARMUP, new Task() {
+        public long run() { return ASTCodec.encode(ast).length; }
+      });
+      measure("decode " + names[i], text.length, "chars", CODEC_WARMUP, new Task() {
+        public long run() throws IOException { return ASTCodec.decode(bytes).hashCode(); }
+      });
+    }
+  }
+
+  /** Compares lexing and parsing the random program through Tokens and through PackedTokens. */
+  static void packed() throws IOException {
+    final char[] text = JamGenerator.program(42, 1 << 20).toCharArray();
+    final long tokens = countTokens(new CharLexer(text));
+    Task[] tasks = {
+      new Task() {
+        public long run() { return countTokens(new CharLexer(text)); }
+      },
+      new Task() {
+        public long run() { return new CharLexer(text).lexPacked().size(); }
+      },
+      new Task() {
+        public long run() { return new Parser(text).parse().hashCode(); }
+      },
+      new Task() {
+        public long run() { return new Parser(new CharLexer(text).lexPacked()).parse().hashCode(); }
+      }
+    };
+    String[] names = { "lex Tokens", "lex PackedTokens", "parse Tokens", "parse PackedTokens" };
+    for (int i = 0; i < tasks.length; i++) {
+      measure(names[i], tokens, "tokens", tasks[i]);
+      measureAllocation(names[i], tokens, "token", tasks[i]);
+    }
+  }
+
+  /** Measures the cost of span tracking. */
+  static void spans() throws IOException {
+    String[] names = { "random", "wide" };
+    String[] programs = { JamGenerator.program(42, 1 << 20), Corpus.wide(20000) };
+    for (int i = 0; i < programs.length; i++) {
+      final char[] text = programs[i].toCharArray();
+      Task plain = new Task() {
+        public long run() { return new Parser(text).parse().hashCode(); }
+      };
+      Task tracking = new Task() {
+        public long run() { return new Parser(text).spans(new SourceSpans()).parse().hashCode(); }
+      };
+      measure("parse " + names[i], text.length, "chars", plain);
+      measureAllocation("parse " + names[i], text.length, "char", plain);
+      measure("parse with spans " + names[i], text.length, "chars", tracking);
+      measureAllocation("parse with spans " + names[i], text.length, "char", tracking);
+    }
+  }
+
+  /** Measures error recovery: the time to the first error and the total time with many errors. */
+  static void recover() throws IOException {
+    String program = JamGenerator.program(42, 1 << 20);
+    String[] names = { "valid", "late error" };
+    char[][] texts = { program.toCharArray(), (program + " )").toCharArray() };
+    for (int i = 0; i < texts.length; i++) {
+      final char[] text = texts[i];
+      measure("fail-fast " + names[i], text.length, "chars", new Task() {
+        public long run() {
+          try { return new Parser(text).parse().hashCode(); }
+          catch (ParseException e) { return e.getMessage().length(); }
+        }
+      });
+      measure("recovery " + names[i], text.length, "chars", new Task() {
+        public long run() {
+          java.util.ArrayList<ParseException> diagnostics = new java.util.ArrayList<ParseException>();
+          return new Parser(text).recover(diagnostics).parse().hashCode() + diagnostics.size();
+        }
+      });
+    }
+    for (int n = 10000; n <= 1000000; n *= 10) {
+      StringBuilder errors = new StringBuilder("let ");
+      for (int i = 0; i < n; i++) errors.append("x").append(i).append(" := (1 + );\n");
+      final char[] text = errors.append("in x0").toString().toCharArray();
+      measure("recovery " + n + " errors", text.length, "chars", new Task() {
+        public long run() {
+          java.util.ArrayList<ParseException> diagnostics = new java.util.ArrayList<ParseException>();
+          return new Parser(text).recover(diagnostics).parse().hashCode() + diagnostics.size();
+        }
+      });
+    }
+  }
+
+  /** Measures how ParallelLexer scales with the number of workers. */
+  static void plex() throws IOException {
+    final char[] text = JamGenerator.program(42, 1 << 24).toCharArray();
+    final long tokens = countTokens(new CharLexer(text));
+    measure("CharLexer.readToken", tokens, "tokens", new Task() {
+      public long run() { return countTokens(new CharLexer(text)); }
+    });
+    for (int p = 1; p <= Runtime.getRuntime().availableProcessors(); p++) {
+      final java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(p);
+      try {
+        measure("ParallelLexer.lex " + p + " workers", tokens, "tokens", new Task() {
+          public long run() {
+            return ParallelLexer.lex(text, new SymbolTable(), pool, ParallelLexer.CHUNK_SIZE).length;
+          }
+        });
+      } finally {
+        pool.shutdown();
+      }
+    }
+  }
+
+  /** Compares parsing the random program with finding it in the memory and disk tiers of a ParseCache. */
+  static void cache() throws IOException {
+    final char[] text = JamGenerator.program(42, 1 << 20).toCharArray();
+    final File directory = java.nio.file.Files.createTempDirectory("jam-cache").toFile();
+    try {
+      final ParseCache warm = new ParseCache(16, directory);
+      warm.parse(text);
+      measure("parse", text.length, "chars", new Task() {
+        public long run() { return new Parser(text).parse().hashCode(); }
+      });
+      measure("ParseCache memory hit", text.length, "chars", new Task() {
+        public long run() { return warm.parse(text).hashCode(); }
+      });
+      measure("ParseCache disk hit", text.length, "chars", new Task() {
+        public long run() { return new ParseCache(16, directory).parse(text).hashCode(); }
+      });
+    } finally {
+      for (File f : directory.listFiles()) f.delete();
+      directory.delete();
+    }
+  }
+
+  /** Compares lists of 1000000 elements built as linked JamCons cells and by consing onto JamEmpty, which builds a
+    * ChunkedJamCons. */
+  static void lists() throws IOException {
+    final int n = 1000000;
+    final JamVal[] elems = new JamVal[n];
+    for (int i = 0; i < n; i++) elems[i] = IntConstant.valueOf(i);
+    final JamList[] lists = new JamList[2];
+    Task[] build = {
+      new Task() {
+        public long run() {
+          JamList l = JamEmpty.ONLY;
+          for (int i = n - 1; i >= 0; i--) l = new JamCons(elems[i], l);
+          lists[0] = l;
+          return 0;
+        }
+      },
+      new Task() {
+        public long run() {
+          JamList l = JamEmpty.ONLY;
+          for (int i = n - 1; i >= 0; i--) l = l.cons(elems[i]);
+          lists[1] = l;
+          return 0;
+        }
+      }
+    };
+    String[] names = { "JamCons", "ChunkedJamCons" };
+    for (int k = 0; k < 2; k++) {
+      final int which = k;
+      lists[k] = null;
+      long before = usedMemory();
+      build[k].run();
+      long retained = usedMemory() - before;
+      System.out.printf("%-32s %12d bytes %10.1f bytes/element%n", names[k] + " retained", retained,
+                        (double) retained / n);
+      measure(names[k] + " build", n, "elements", build[k]);
+      measure(names[k] + " traverse", n, "elements", new Task() {
+        public long run() {
+          long sum = 0;
+          for (JamList l = lists[which]; l instanceof JamCons; l = ((JamCons) l).rest()) {
+            sum += ((IntConstant) ((JamCons) l).first()).value();
+          }
+          return sum;
+        }
+      });
+    }
+  }
+
+  /** Returns the bytes of heap in use after a full collection */
+  static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) System.gc();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /** Compares the evaluation modes on a program with unused lists of 100000 elements and one with a shared list of
+    * 2000 elements (call-by-name takes time quadratic in its length, since each element's n is a chain of
+    * suspensions). */
+  static void lazy() throws IOException {
+    String[] names = { "unused", "shared" };
+    String[] programs = { Corpus.unused(100000), Corpus.shared(2000) };
+    for (int i = 0; i < programs.length; i++) {
+      final Interpreter interpreter = new Interpreter(new StringReader(programs[i])).stackSize(0);
+      for (int m = Interpreter.CALL_BY_VALUE; m <= Interpreter.CALL_BY_NEED; m++) {
+        final int mode = m;
+        Task task = new Task() {
+          public long run() { return interpreter.eval(mode).hashCode(); }
+        };
+        String name = "call-by-" + Interpreter.MODES[mode] + " " + names[i];
+        measure(name, 1, "runs", task);
+        measureAllocation(name, 1, "run", task);
+      }
+    }
+  }
+
+  /** Compares the lexing engines on the specified file. */
+  static void lexFile(final String fileName) throws IOException {
+    long bytes = new File(fileName).length();
+    measure("Lexer (FileReader)", bytes, "bytes", new Task() {
+      public long run() throws IOException { return countTokens(new Lexer(fileName)); }
+    });
+    measure("CharLexer (read fully)", bytes, "bytes", new Task() {
+      public long run() throws IOException { return countTokens(new CharLexer(new FileReader(fileName))); }
+    });
+    measure("MappedLexer", bytes, "bytes", new Task() {
+      public long run() throws IOException { return countTokens(new MappedLexer(fileName)); }
+    });
+  }
+
+  static long countTokens(TokenSource in) {
+    long n = 0;
+    while (in.readToken() != null) n++;
+    return n;
+  }
+
+  /** Runs task WARMUP + RUNS times and reports the best throughput in units per second; returns the best time in
+    * nanoseconds. */
+  static long measure(String name, long units, String unit, Task task) throws IOException {
+    return measure(name, units, unit, WARMUP, task);
+  }
+
+  /** Runs task warmup + RUNS times and reports the best throughput as measure does */
+  static long measure(String name, long units, String unit, int warmup, Task task) throws IOException {
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < warmup + RUNS; i++) {
+      long start = System.nanoTime();
+      blackhole += task.run();
+      long time = System.nanoTime() - start;
+      if (i >= warmup && time < best) best = time;
+    }
+    System.out.printf("%-32s %12.3f ms %14.0f %s/s%n", name, best / 1e6, units * 1e9 / best, unit);
+    return best;
+  }
+}
+
+/** The fixed benchmark corpus: a small realistic program and generators for programs that are wide (many
+  * definitions and long argument lists) or deep (nested expressions). */
+class Corpus {
+
+  static final String SMALL =
+    "let append := map x, y to if x = empty then y else cons(first(x), append(rest(x), y));\n" +
+    "    fact := map n to if n <= 0 then 1 else n * fact(n - 1);\n" +
+    "in append(cons(fact(5), empty), cons(~ (2 >= 3) & true, empty)) // a comment\n";
+
+  /** Returns a let with n definitions whose right hand sides are applications with up to 16 arguments. */
+  static String wide(int n) {
+    StringBuilder sb = new StringBuilder("let\n");
+    for (int i = 0; i < n; i++) {
+      sb.append("  v").append(i).append(" := f").append(i % 100).append('(');
+      for (int j = 0; j < 1 + i % 16; j++) {
+        if (j > 0) sb.append(", ");
+        sb.append("v").append(i - j).append(" + ").append(j * 31 + i);
+      }
+      sb.append(");\n");
+    }
+    return sb.append("in v0\n").toString();
+  }
+
+  /** Returns a program computing the nth Fibonacci number by naive recursion. */
+  static String fib(int n) {
+    return "let fib := map n to if n < 2 then n else fib(n - 1) + fib(n - 2); in fib(" + n + ")";
+  }
+
+  /** Returns a program that builds a list of the integers from n down to 1 with cons and sums it. */
+  static String list(int n) {
+    return "let build := map n to if n = 0 then empty else cons(n, build(n - 1));\n" +
+           "    sum := map l to if empty?(l) then 0 else first(l) + sum(rest(l));\n" +
+           "in sum(build(" + n + "))";
+  }
+
+  /** Returns a program that counts to n with a tail recursive loop. */
+  static String loop(int n) {
+    return "let loop := map n, acc to if n = 0 then acc else loop(n - 1, acc + 1); in loop(" + n + ", 0)";
+  }
+
+  /** Returns a program that loops n times, computing an int with nested arithmetic and comparisons in each iteration */
+  static String arithmetic(int n) {
+    // operators associate to the left and have no precedence
+    return "let loop := map i, acc to if i > " + n + " then acc\n" +
+           "                          else loop(i + 1, if (acc * 3 + (i * i)) / 2 < -(i * 7) then -acc " +
+           "else (acc + (i * 5)) / 3 - 1000);\n" +
+           "in loop(1, 0)";
+  }
+
+  /** Returns a program that builds lists of n elements as a let right hand side and an argument that are never
+    * used. */
+  static String unused(int n) {
+    return "let build := map n to if n = 0 then empty else cons(n, build(n - 1));\n" +
+           "    big := build(" + n + ");\n" +
+           "    k := map x, y to x;\n" +
+           "in k(first(build(10)), build(" + n + "))";
+  }
+
+  /** Returns a program that builds a list of n elements bound to a variable that is referenced three times. */
+  static String shared(int n) {
+    return "let build := map n to if n = 0 then empty else cons(n, build(n - 1));\n" +
+           "    xs := build(" + n + ");\n" +
+           "in first(xs) + first(rest(xs)) + first(rest(rest(xs)))";
+  }
+
+  /** Returns an expression of nesting depth n mixing parentheses, if, map, unary and binary operators. */
+  static String deep(int n) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < n; i++) {
+      switch (i % 4) {
+        case 0: sb.append("(1 + "); break;
+        case 1: sb.append("(if x < ").append(i).append(" then "); break;
+        case 2: sb.append("- g(x, "); break;
+        case 3: sb.append("(map x to "); break;
+      }
+    }
+    sb.append("x");
+    for (int i = n - 1; i >= 0; i--) {
+      switch (i % 4) {
+        case 0: sb.append(")"); break;
+        case 1: sb.append(" else y)"); break;
+        case 2: sb.append(")"); break;
+        case 3: sb.append(")(2)"); break;
+      }
+    }
+    return sb.toString();
+  }
+}
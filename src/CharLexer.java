@@ -0,0 +1,474 @@
+/** Jam lexer engines that scan program text held in memory instead of going through StreamTokenizer.
+  *
+  * ScanLexer recognizes exactly the token language accepted by Lexer (which is defined by the way Lexer configures
+  * StreamTokenizer) and returns the same Token objects: keywords, operators, delimiters and primitives are the
+  * Lexer singletons and each distinct word yields a single Variable.  Unlike Lexer, it parses integer literals
+  * without going through double and only allocates a String the first time a given word is seen.
+  *
+  * The StreamTokenizer quirks that Lexer inherits are preserved: '.' is a numeric character (so "1.0" is the integer
+  * 1 and "a.b" is a single word), characters above 255 are word characters, characters from 128 to 255 are illegal,
+  * and whitespace or comments may separate the two halves of <=, >=, != and :=.
+  *
+  * Tokens are scanned as the kind codes of PackedTokens, with a payload for integers and words, so lexPacked() can
+  * lex a whole input into a PackedTokens stream without creating any Token; readToken() maps each kind to its Token.
+  *
+  * Subclasses supply the input through charAt(i) and text(start, end): CharLexer reads a char[] and MappedLexer
+  * reads the bytes of a memory-mapped file.
+  */
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StreamTokenizer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+abstract class ScanLexer implements TokenSource {
+
+  /** The value returned by charAt for an input unit that is part of a word character which the subclass cannot
+    * represent as a single char (e.g., a byte of a multi-byte UTF-8 sequence).  It lies outside the char range. */
+  static final int WIDE_CHAR = 0x10000;
+
+  /* character classes for the first 256 characters, mirroring the StreamTokenizer syntax set up by Lexer */
+  private static final byte WHITESPACE = 1;
+  private static final byte DIGIT = 2;
+  private static final byte ALPHA = 4;
+  private static final byte[] CLASS = new byte[256];
+
+  static {
+    for (int c = 0; c <= ' '; c++) CLASS[c] = WHITESPACE;
+    for (int c = '0'; c <= '9'; c++) CLASS[c] = DIGIT | ALPHA;
+    for (int c = 'a'; c <= 'z'; c++) CLASS[c] = ALPHA;
+    for (int c = 'A'; c <= 'Z'; c++) CLASS[c] = ALPHA;
+    CLASS['_'] = ALPHA;
+    CLASS['?'] = ALPHA;
+    CLASS['.'] = DIGIT;
+  }
+
+  /** The unconsumed input consists of the units at positions pos..limit-1. */
+  int pos;
+  final int limit;
+
+  /** The position at which the input starts */
+  private final int origin;
+
+  /** The position up to which lineColumn has counted lines, the line there and the position at which it starts */
+  private int scanned, scannedLine, scannedLineStart;
+
+  /** The buffer holding the next token in the input stream; it supports the peek() operation. */
+  private Token buffer;
+
+  /** The positions of the last token read, saved by peek() before it scans the buffered token */
+  private int readStart, readEnd;
+
+  /** The payload of the token last scanned: the value of an INT or the symbol id of a VARIABLE */
+  private int payload;
+
+  /** The position at which the token last scanned starts */
+  private int tokenStart;
+
+  /* The word table as an open addressing hash table keyed by character sequences, so that words can be looked up
+   * without first copying them into a String.  The hash codes agree with String.hashCode().  The code of a word is
+   * its kind, or -1 - id for a Variable with symbol id id. */
+  private String[] words;
+  private int[] hashes;
+  private int[] codes;
+  private int wordCount;
+
+  /** The Variables seen so far indexed by symbol id */
+  private Variable[] variables = new Variable[16];
+  private int variableCount;
+
+  /** The thread-safe table consulted for words missing from the word table, if non-null; the word table then acts
+    * as a private cache of the shared table, which starts out empty. */
+  private final SymbolTable symbols;
+
+  ScanLexer(int start, int end, SymbolTable symbols) {
+    pos = start;
+    origin = start;
+    scanned = scannedLineStart = start;
+    scannedLine = 1;
+    limit = end;
+    this.symbols = symbols;
+    if (symbols == null) initWordTable();
+    else rehash(64);
+  }
+
+  /** Returns the input unit at position i < limit: a char, or WIDE_CHAR. */
+  abstract int charAt(int i);
+
+  /** Returns the number of input units taken by the character at position i < limit, which is not part of a word. */
+  int width(int i) { return 1; }
+
+  /** Returns the text of the input units at positions start..end-1. */
+  abstract String text(int start, int end);
+
+  /** Returns the next token in the input stream without consuming it */
+  public Token peek() {
+    if (buffer == null) {
+      readStart = tokenStart;
+      readEnd = pos;
+      buffer = readToken();
+    }
+    return buffer;
+  }
+
+  /** Returns the position at which the last token read starts, or at which lexing the next token failed */
+  int start() { return buffer == null ? tokenStart : readStart; }
+
+  /** Returns the position just after the last token read */
+  int end() { return buffer == null ? pos : readEnd; }
+
+  /** Returns the line of position i, counting from 1, in the high 32 bits and its column, counting from 1, in the
+    * low 32 bits; columns count input units.  It scans the input from the position of the previous call, or from the
+    * start for an earlier position, so a sequence of calls on increasing positions takes linear time overall. */
+  long lineColumn(int i) {
+    if (i < scanned) {
+      scanned = origin;
+      scannedLine = 1;
+      scannedLineStart = origin;
+    }
+    int line = scannedLine, lineStart = scannedLineStart;
+    int p = scanned;
+    for (; p < i && p < limit; p++) {
+      int c = charAt(p);
+      if (c == '\n' || (c == '\r' && (p + 1 == limit || charAt(p + 1) != '\n'))) {
+        line++;
+        lineStart = p + 1;
+      }
+    }
+    scanned = p;
+    scannedLine = line;
+    scannedLineStart = lineStart;
+    return (long) line << 32 | (i - lineStart + 1);
+  }
+
+  /** Reads the next Token in the input stream (consuming it); returns null at end of input. */
+  public Token readToken() {
+    if (buffer != null) {
+      Token token = buffer;
+      buffer = null;          // clear buffer
+      return token;
+    }
+
+    int kind = scan();
+    if (kind == PackedTokens.INT) return IntConstant.valueOf(payload);
+    if (kind == PackedTokens.VARIABLE) return variables[payload];
+    return PackedTokens.TOKENS[kind];
+  }
+
+  /** Lexes the rest of the input into a PackedTokens stream without creating Tokens.  A lexical error ends the stream
+    * and is recorded as its failure.  No token may have been peeked. */
+  PackedTokens lexPacked() {
+    if (buffer != null) throw new IllegalStateException("lexPacked() called after peek()");
+    PackedTokens tokens = new PackedTokens((limit - pos) / 4);
+    try {
+      for (int kind = scan(); kind != PackedTokens.EOF; kind = scan()) tokens.add(kind, payload, tokenStart);
+    }
+    catch (ParseException e) {
+      tokens.failure = e;
+    }
+    tokens.symbols = Arrays.copyOf(variables, variableCount);
+    return tokens;
+  }
+
+  /** Scans the next token and returns its kind (see PackedTokens), leaving its payload in payload and its position in
+    * tokenStart; returns EOF at end of input. */
+  private int scan() {
+    skipBlanks();
+    tokenStart = pos;
+    if (pos >= limit) return PackedTokens.EOF;
+
+    int c = charAt(pos);
+    if (c < 256) {
+      int cls = CLASS[c];
+      if ((cls & DIGIT) != 0) return readNumber();
+      if ((cls & ALPHA) != 0) return readWord();
+    }
+    else return readWord();
+
+    pos += width(pos);
+    switch (c) {
+      case '(': return PackedTokens.LEFT_PAREN;
+      case ')': return PackedTokens.RIGHT_PAREN;
+      case '[': return PackedTokens.LEFT_BRACK;
+      case ']': return PackedTokens.RIGHT_BRACK;
+      case ',': return PackedTokens.COMMA;
+      case ';': return PackedTokens.SEMICOLON;
+
+      case '+': return PackedTokens.PLUS;
+      case '-': return PackedTokens.MINUS;
+      case '*': return PackedTokens.TIMES;
+      case '/': return PackedTokens.DIVIDE;
+      case '~': return PackedTokens.NOT;
+      case '=': return PackedTokens.EQUALS;
+      case '&': return PackedTokens.AND;
+      case '|': return PackedTokens.OR;
+
+      case '<': return followedByEquals() ? PackedTokens.LESS_THAN_EQUALS : PackedTokens.LESS_THAN;
+      case '>': return followedByEquals() ? PackedTokens.GREATER_THAN_EQUALS : PackedTokens.GREATER_THAN;
+      case '!':
+        if (followedByEquals()) return PackedTokens.NOT_EQUALS;
+        // like Lexer, consume the StreamTokenizer token that follows and report its type as a char
+        throw new ParseException("!" + ((char) skipStreamToken()) + " is not a legal token");
+      case ':':
+        if (followedByEquals()) return PackedTokens.BIND;   // ":=" is a keyword
+        skipBlanks();
+        throw new ParseException("':' is not a legal token");
+
+      default:
+        throw new ParseException("'" + ((char) c) + "' is not a legal token");
+    }
+  }
+
+  /** Skips whitespace and // comments. */
+  private void skipBlanks() {
+    int pos = this.pos;
+    int limit = this.limit;
+    while (pos < limit) {
+      int c = charAt(pos);
+      if (c <= ' ') pos++;
+      else if (c == '/' && pos + 1 < limit && charAt(pos + 1) == '/') {
+        pos += 2;
+        while (pos < limit && (c = charAt(pos)) != '\n' && c != '\r') pos++;
+      }
+      else break;
+    }
+    this.pos = pos;
+  }
+
+  /** Consumes the '=' completing a two character operator if it is the next StreamTokenizer token. */
+  private boolean followedByEquals() {
+    int end = pos;
+    skipBlanks();
+    if (pos < limit && charAt(pos) == '=') {
+      pos++;
+      return true;
+    }
+    pos = end;
+    return false;
+  }
+
+  /** Consumes the next StreamTokenizer token without lexing it and returns its StreamTokenizer type: TT_EOF,
+    * TT_NUMBER, TT_WORD or the ordinary character itself. */
+  private int skipStreamToken() {
+    skipBlanks();
+    if (pos >= limit) return StreamTokenizer.TT_EOF;
+    int c = charAt(pos);
+    if (c < 256 && (CLASS[c] & DIGIT) != 0) {
+      boolean seendot = false;
+      for (; pos < limit && ((c = charAt(pos)) >= '0' && c <= '9' || c == '.' && ! seendot); pos++) {
+        if (c == '.') seendot = true;
+      }
+      return StreamTokenizer.TT_NUMBER;
+    }
+    if (c >= 256 || (CLASS[c] & ALPHA) != 0) {
+      for (; pos < limit && ((c = charAt(pos)) >= 256 || (CLASS[c] & (ALPHA | DIGIT)) != 0); pos++) ;
+      return StreamTokenizer.TT_WORD;
+    }
+    pos += width(pos);
+    return c;
+  }
+
+  /** Reads a number, which like StreamTokenizer's is a run of digits containing at most one '.', into payload. */
+  private int readNumber() {
+    int start = pos;
+    int p = start;
+    long value = 0;
+    int c;
+    while (p < limit && (c = charAt(p)) >= '0' && c <= '9') {
+      if (value <= Integer.MAX_VALUE) value = value * 10 + (c - '0');
+      p++;
+    }
+    if (value <= Integer.MAX_VALUE && (p == limit || charAt(p) != '.')) {
+      pos = p;
+      payload = (int) value;
+      return PackedTokens.INT;
+    }
+
+    // rare case: recompute the number exactly as StreamTokenizer does, so that "1.0" is accepted as 1 and the
+    // error message for a non-integer matches the one reported by Lexer
+    double v = 0;
+    int decexp = 0;
+    int seendot = 0;
+    p = start;
+    while (p < limit) {
+      c = charAt(p);
+      if (c == '.' && seendot == 0) seendot = 1;
+      else if ('0' <= c && c <= '9') {
+        v = v * 10 + (c - '0');
+        decexp += seendot;
+      }
+      else break;
+      p++;
+    }
+    pos = p;
+    if (decexp != 0) {
+      double denom = 10;
+      while (--decexp > 0) denom *= 10;
+      v = v / denom;
+    }
+    int intValue = (int) v;
+    if (v == (double) intValue) {
+      payload = intValue;
+      return PackedTokens.INT;
+    }
+    throw new ParseException("The number " + v + " is not a 32 bit integer");
+  }
+
+  /** Reads a word and classifies it using the word table, leaving the symbol id of a Variable in payload. */
+  private int readWord() {
+    int start = pos;
+    int p = start;
+    int hash = 0;
+    boolean wide = false;
+    while (p < limit) {
+      int c = charAt(p);
+      if (c < 256) {
+        if ((CLASS[c] & (ALPHA | DIGIT)) == 0) break;
+      }
+      else if (c == WIDE_CHAR) wide = true;
+      hash = 31 * hash + c;
+      p++;
+    }
+    pos = p;
+    int code;
+    if (wide) {
+      // the input units are not chars, so the word must be decoded before it can be looked up
+      String word = text(start, p);
+      code = lookup(word, word.hashCode());
+    }
+    else code = lookup(start, p - start, hash);
+    if (code >= 0) return code;
+    payload = -1 - code;
+    return PackedTokens.VARIABLE;
+  }
+
+  /** Returns the code of the word at positions start..start+len-1 with the given hash, creating a new Variable if
+    * the word has not been seen before. */
+  private int lookup(int start, int len, int hash) {
+    int mask = words.length - 1;
+    for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+      String word = words[i];
+      if (word == null) return install(text(start, start + len), hash);
+      if (hashes[i] == hash && word.length() == len && matches(word, start)) return codes[i];
+    }
+  }
+
+  /** Returns the code of the specified word with the given hash, creating a new Variable if necessary. */
+  private int lookup(String word, int hash) {
+    int mask = words.length - 1;
+    for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+      if (words[i] == null) return install(word, hash);
+      if (hashes[i] == hash && words[i].equals(word)) return codes[i];
+    }
+  }
+
+  /** Installs a word missing from the word table and returns its code. */
+  private int install(String word, int hash) {
+    // without a shared table, it must be a new variable name
+    Token token = symbols == null ? new Variable(word) : symbols.intern(word);
+    int code;
+    if (token instanceof Variable) {
+      if (variableCount == variables.length) variables = Arrays.copyOf(variables, 2 * variableCount);
+      variables[variableCount] = (Variable) token;
+      code = -1 - variableCount++;
+    }
+    else code = PackedTokens.kindOf(token);
+    insert(word, hash, code);
+    return code;
+  }
+
+  private boolean matches(String word, int start) {
+    for (int i = 0, n = word.length(); i < n; i++)
+      if (word.charAt(i) != charAt(start + i)) return false;
+    return true;
+  }
+
+  private static int spread(int hash) { return hash ^ (hash >>> 16); }
+
+  private void insert(String word, int hash, int code) {
+    if (2 * (wordCount + 1) > words.length) rehash(2 * words.length);
+    int mask = words.length - 1;
+    int i = spread(hash) & mask;
+    while (words[i] != null) i = (i + 1) & mask;
+    words[i] = word;
+    hashes[i] = hash;
+    codes[i] = code;
+    wordCount++;
+  }
+
+  private void rehash(int capacity) {
+    String[] oldWords = words;
+    int[] oldHashes = hashes;
+    int[] oldCodes = codes;
+    words = new String[capacity];
+    hashes = new int[capacity];
+    codes = new int[capacity];
+    wordCount = 0;
+    if (oldWords != null)
+      for (int i = 0; i < oldWords.length; i++)
+        if (oldWords[i] != null) insert(oldWords[i], oldHashes[i], oldCodes[i]);
+  }
+
+  /** Loads the keywords, constants and primitives installed by Lexer.initWordTable */
+  private void initWordTable() {
+    HashMap<String,Token> wordTable = new HashMap<String,Token>();
+    Lexer.initWordTable(wordTable);
+    rehash(64);
+    for (java.util.Map.Entry<String,Token> e : wordTable.entrySet())
+      insert(e.getKey(), e.getKey().hashCode(), PackedTokens.kindOf(e.getValue()));
+  }
+}
+
+/** A ScanLexer over a char[], e.g., a program already held in memory as text. */
+class CharLexer extends ScanLexer {
+
+  private final char[] buf;
+
+  /* constructors */
+
+  /** Constructs a CharLexer for the characters chars[start..end) */
+  CharLexer(char[] chars, int start, int end) { this(chars, start, end, null); }
+
+  /** Constructs a CharLexer for the characters chars[start..end) that classifies words using the specified shared
+    * table */
+  CharLexer(char[] chars, int start, int end, SymbolTable symbols) {
+    super(start, end, symbols);
+    buf = chars;
+  }
+
+  /** Constructs a CharLexer for the specified program text */
+  CharLexer(char[] chars) { this(chars, 0, chars.length); }
+
+  /** Constructs a CharLexer for the remaining contents of the specified buffer (copied only if it has no array) */
+  CharLexer(CharBuffer cb) {
+    this(cb.hasArray() ? cb.array() : toArray(cb),
+         cb.hasArray() ? cb.arrayOffset() + cb.position() : 0,
+         cb.hasArray() ? cb.arrayOffset() + cb.limit() : cb.remaining());
+  }
+
+  /** Constructs a CharLexer for the entire contents of the specified stream */
+  CharLexer(Reader inputStream) throws IOException { this(readFully(inputStream)); }
+
+  private static char[] toArray(CharBuffer cb) {
+    char[] chars = new char[cb.remaining()];
+    cb.duplicate().get(chars);
+    return chars;
+  }
+
+  /** Reads the entire contents of the specified stream into a CharBuffer whose array is exposed. */
+  static CharBuffer readFully(Reader inputStream) throws IOException {
+    char[] chars = new char[8192];
+    int n = 0;
+    for (int k; (k = inputStream.read(chars, n, chars.length - n)) >= 0; ) {
+      n += k;
+      if (n == chars.length) chars = java.util.Arrays.copyOf(chars, 2 * chars.length);
+    }
+    return CharBuffer.wrap(chars, 0, n);
+  }
+
+  int charAt(int i) { return buf[i]; }
+
+  String text(int start, int end) { return new String(buf, start, end - start); }
+}
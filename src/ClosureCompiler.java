@@ -0,0 +1,540 @@
+/** The closure compiler, which links a resolved AST (see Resolver) once into a tree of Code nodes, each specialized
+  * to the operation it performs, and so runs a program without any visitor dispatch.
+  *
+  * A BinOpApp of BinOpPlus becomes an Add node that adds the values of its two children, an application of a
+  * primitive to the right number of arguments becomes a node for that primitive, a variable becomes a node that
+  * holds its address, and so on: BinOpVisitor, UnOpVisitor and PrimFunVisitor dispatch happens once, at link
+  * time.  Nodes evaluate call-by-value in the environments of Evaluator (Env), with the same checks, evaluation
+  * order and error messages (the checks of JamRuntime), and without proper tail calls.
+  *
+  * Integer arithmetic and comparisons compute on unboxed ints.  A node whose value is always an int (an IntCode)
+  * answers evalInt without boxing, and any other node answers it by checking and unboxing its value, so an IntConstant
+  * is only allocated where an int escapes into a variable, a list, an argument or the result.  Comparisons likewise
+  * answer test, the boolean an if needs, without a BoolConstant.  Since BinOpEvaluator evaluates both operands before
+  * checking either, an operator only checks its first operand as soon as it is evaluated when that cannot change which
+  * error is reported: when the first operand is an IntCode or the second a constant.
+  */
+
+/** A node of a linked program. */
+abstract class Code {
+  /** Returns the value of this node in the environment env */
+  abstract JamVal eval(Env env);
+
+  /** Returns the value of this node in env, which op requires to be an int */
+  int evalInt(Env env, Object op) { return Evaluator.toInt(eval(env), op); }
+
+  /** Returns the value of this node in env, which is the test of an if */
+  boolean test(Env env) { return JamRuntime.test(eval(env)); }
+}
+
+/** A node whose value is always an int. */
+abstract class IntCode extends Code {
+  JamVal eval(Env env) { return IntConstant.valueOf(evalInt(env, null)); }
+  abstract int evalInt(Env env, Object op);
+}
+
+/** A closure whose body has been linked to Code. */
+class CodeClosure extends JamClosure {
+  final Code code;
+  final int frameSize;
+
+  CodeClosure(FlatMap body, JamVal[] captured, Code code) {
+    super(body, captured);
+    this.code = code;
+    frameSize = body.frameSize;
+  }
+}
+
+class ClosureCompiler implements ASTVisitor<Code> {
+
+  /** Links the body of the resolved program, which runs in a frame of program.frameSize slots */
+  static Code link(FlatMap program) { return program.body().accept(new ClosureCompiler()); }
+
+  private Code[] linkAll(AST[] asts) {
+    Code[] result = new Code[asts.length];
+    for (int i = 0; i < asts.length; i++) result[i] = asts[i].accept(this);
+    return result;
+  }
+
+  public Code forBoolConstant(BoolConstant b) { return new ConstantCode(b); }
+  public Code forIntConstant(IntConstant i) { return new IntLiteral(i); }
+  public Code forEmptyConstant(EmptyConstant n) { return new ConstantCode(JamEmpty.ONLY); }
+  public Code forJamEmpty(JamEmpty je) { return new ConstantCode(je); }
+  public Code forPrimFun(PrimFun f) { return new ConstantCode(f); }
+
+  public Code forErrorNode(ErrorNode e) {
+    throw new EvalException("program has a syntax error: " + e.diagnostic().getMessage());
+  }
+
+  public Code forVariable(Variable v) {
+    BoundVar b = (BoundVar) v;
+    if (b.slot < 0) return new Unbound(b.name());
+    if (b.captured) return b.cell ? new CapturedCell(b.name(), b.slot) : new Captured(b.slot);
+    return b.cell ? new LocalCell(b.name(), b.slot) : new Local(b.name(), b.slot);
+  }
+
+  public Code forUnOpApp(UnOpApp u) {
+    final Code arg = u.arg().accept(this);
+    return u.rator().accept(new UnOpVisitor<Code>() {
+      public Code forUnOpPlus(UnOpPlus op) { return new Plus(arg); }
+      public Code forUnOpMinus(UnOpMinus op) { return new Negate(arg); }
+      public Code forOpTilde(OpTilde op) { return new Not(arg); }
+    });
+  }
+
+  public Code forBinOpApp(BinOpApp b) {
+    final Code arg1 = b.arg1().accept(this);
+    final Code arg2 = b.arg2().accept(this);
+    return b.rator().accept(new BinOpVisitor<Code>() {
+      public Code forBinOpPlus(BinOpPlus op) { return new Add(arg1, arg2); }
+      public Code forBinOpMinus(BinOpMinus op) { return new Subtract(arg1, arg2); }
+      public Code forOpTimes(OpTimes op) { return new Multiply(arg1, arg2); }
+      public Code forOpDivide(OpDivide op) { return new Divide(arg1, arg2); }
+      public Code forOpEquals(OpEquals op) { return new Equal(arg1, arg2); }
+      public Code forOpNotEquals(OpNotEquals op) { return new NotEqual(arg1, arg2); }
+      public Code forOpLessThan(OpLessThan op) { return new Less(arg1, arg2); }
+      public Code forOpGreaterThan(OpGreaterThan op) { return new Greater(arg1, arg2); }
+      public Code forOpLessThanEquals(OpLessThanEquals op) { return new LessEqual(arg1, arg2); }
+      public Code forOpGreaterThanEquals(OpGreaterThanEquals op) { return new GreaterEqual(arg1, arg2); }
+      public Code forOpAnd(OpAnd op) { return new And(arg1, arg2); }
+      public Code forOpOr(OpOr op) { return new Or(arg1, arg2); }
+    });
+  }
+
+  public Code forApp(App a) {
+    final Code[] args = linkAll(a.args());
+    if (! (a.rator() instanceof PrimFun)) return new Apply(a.rator().accept(this), args);
+    final PrimFun f = (PrimFun) a.rator();
+    if (args.length != (f == ConsPrim.ONLY ? 2 : 1)) return new ApplyPrim(f, args);
+    return f.accept(new PrimFunVisitor<Code>() {
+      public Code forFunctionPPrim() { return new IsFunction(args[0]); }
+      public Code forNumberPPrim() { return new IsNumber(args[0]); }
+      public Code forListPPrim() { return new IsList(args[0]); }
+      public Code forConsPPrim() { return new IsCons(args[0]); }
+      public Code forEmptyPPrim() { return new IsEmpty(args[0]); }
+      public Code forArityPrim() { return new Arity(args[0]); }
+      public Code forConsPrim() { return new ConsCode(args[0], args[1]); }
+      public Code forFirstPrim() { return new First(args[0]); }
+      public Code forRestPrim() { return new Rest(args[0]); }
+    });
+  }
+
+  public Code forMap(Map m) { return new MakeClosure((FlatMap) m, m.body().accept(this)); }
+  public Code forIf(If i) { return new IfCode(i.test().accept(this), i.conseq().accept(this), i.alt().accept(this)); }
+
+  public Code forLet(Let l) {
+    Def[] defs = l.defs();
+    BoundVar[] lhs = new BoundVar[defs.length];
+    Code[] rhs = new Code[defs.length];
+    for (int i = 0; i < defs.length; i++) {
+      lhs[i] = (BoundVar) defs[i].lhs();
+      rhs[i] = defs[i].rhs().accept(this);
+    }
+    return new LetCode(lhs, rhs, l.body().accept(this));
+  }
+
+  /* The Code classes */
+
+  static final class ConstantCode extends Code {
+    private final JamVal value;
+    ConstantCode(JamVal value) { this.value = value; }
+    JamVal eval(Env env) { return value; }
+  }
+
+  static final class IntLiteral extends IntCode {
+    private final IntConstant value;
+    IntLiteral(IntConstant value) { this.value = value; }
+    JamVal eval(Env env) { return value; }
+    int evalInt(Env env, Object op) { return value.value(); }
+  }
+
+  static final class Unbound extends Code {
+    private final String name;
+    Unbound(String name) { this.name = name; }
+    JamVal eval(Env env) { return JamRuntime.unbound(name); }
+  }
+
+  /** A variable of the frame */
+  static final class Local extends Code {
+    private final String name;
+    private final int slot;
+
+    Local(String name, int slot) {
+      this.name = name;
+      this.slot = slot;
+    }
+
+    JamVal eval(Env env) {
+      JamVal value = env.slots[slot];
+      if (value == null) throw new EvalException("variable " + name + " is used before its definition");
+      return value;
+    }
+  }
+
+  /** A variable of the frame held in a Cell */
+  static final class LocalCell extends Code {
+    private final String name;
+    private final int slot;
+
+    LocalCell(String name, int slot) {
+      this.name = name;
+      this.slot = slot;
+    }
+
+    JamVal eval(Env env) {
+      JamVal value = ((Cell) env.slots[slot]).value;
+      if (value == null) throw new EvalException("variable " + name + " is used before its definition");
+      return value;
+    }
+  }
+
+  /** A captured variable not held in a Cell, which was defined when it was captured */
+  static final class Captured extends Code {
+    private final int index;
+    Captured(int index) { this.index = index; }
+    JamVal eval(Env env) { return env.captured[index]; }
+  }
+
+  /** A captured variable held in a Cell */
+  static final class CapturedCell extends Code {
+    private final String name;
+    private final int index;
+
+    CapturedCell(String name, int index) {
+      this.name = name;
+      this.index = index;
+    }
+
+    JamVal eval(Env env) {
+      JamVal value = ((Cell) env.captured[index]).value;
+      if (value == null) throw new EvalException("variable " + name + " is used before its definition");
+      return value;
+    }
+  }
+
+  static final class Plus extends IntCode {
+    private final Code arg;
+    Plus(Code arg) { this.arg = arg; }
+    int evalInt(Env env, Object op) { return arg.evalInt(env, UnOpPlus.ONLY); }
+  }
+
+  static final class Negate extends IntCode {
+    private final Code arg;
+    Negate(Code arg) { this.arg = arg; }
+    int evalInt(Env env, Object op) { return - arg.evalInt(env, UnOpMinus.ONLY); }
+  }
+
+  static final class Not extends Code {
+    private final Code arg;
+    Not(Code arg) { this.arg = arg; }
+    JamVal eval(Env env) { return JamRuntime.not(arg.eval(env)); }
+  }
+
+  /** A binary operator application */
+  abstract static class Binary extends Code {
+    final Code arg1, arg2;
+
+    Binary(Code arg1, Code arg2) {
+      this.arg1 = arg1;
+      this.arg2 = arg2;
+    }
+  }
+
+  /** Whether arg1 of a binary operator can be checked before arg2 is evaluated, which is the case unless arg1 may not
+    * be an int and evaluating arg2 may fail */
+  static boolean eager(Code arg1, Code arg2) {
+    return arg1 instanceof IntCode || arg2 instanceof IntLiteral || arg2 instanceof ConstantCode;
+  }
+
+  /** An application of +, - or * */
+  abstract static class Arithmetic extends IntCode {
+    final Code arg1, arg2;
+    final BinOp op;
+    final boolean eager;
+
+    Arithmetic(Code arg1, Code arg2, BinOp op) {
+      this.arg1 = arg1;
+      this.arg2 = arg2;
+      this.op = op;
+      eager = eager(arg1, arg2);
+    }
+
+    abstract int apply(int a, int b);
+
+    int evalInt(Env env, Object ignored) {
+      if (eager) return apply(arg1.evalInt(env, op), arg2.evalInt(env, op));
+      JamVal v = arg1.eval(env);
+      JamVal w = arg2.eval(env);
+      return apply(Evaluator.toInt(v, op), Evaluator.toInt(w, op));
+    }
+  }
+
+  static final class Add extends Arithmetic {
+    Add(Code arg1, Code arg2) { super(arg1, arg2, BinOpPlus.ONLY); }
+    int apply(int a, int b) { return a + b; }
+  }
+
+  static final class Subtract extends Arithmetic {
+    Subtract(Code arg1, Code arg2) { super(arg1, arg2, BinOpMinus.ONLY); }
+    int apply(int a, int b) { return a - b; }
+  }
+
+  static final class Multiply extends Arithmetic {
+    Multiply(Code arg1, Code arg2) { super(arg1, arg2, OpTimes.ONLY); }
+    int apply(int a, int b) { return a * b; }
+  }
+
+  /** An application of /, which checks its divisor first */
+  static final class Divide extends IntCode {
+    private final Code arg1, arg2;
+    private final boolean eager;
+
+    Divide(Code arg1, Code arg2) {
+      this.arg1 = arg1;
+      this.arg2 = arg2;
+      eager = arg1 instanceof IntCode;
+    }
+
+    int evalInt(Env env, Object ignored) {
+      if (eager) return divide(arg1.evalInt(env, OpDivide.ONLY), arg2.evalInt(env, OpDivide.ONLY));
+      JamVal v = arg1.eval(env);
+      int divisor = arg2.evalInt(env, OpDivide.ONLY);
+      if (divisor == 0) throw new EvalException("division by zero");
+      return Evaluator.toInt(v, OpDivide.ONLY) / divisor;
+    }
+
+    private static int divide(int a, int b) {
+      if (b == 0) throw new EvalException("division by zero");
+      return a / b;
+    }
+  }
+
+  /** An application of <, >, <= or >= */
+  abstract static class Comparison extends Code {
+    final Code arg1, arg2;
+    final BinOp op;
+    final boolean eager;
+
+    Comparison(Code arg1, Code arg2, BinOp op) {
+      this.arg1 = arg1;
+      this.arg2 = arg2;
+      this.op = op;
+      eager = eager(arg1, arg2);
+    }
+
+    abstract boolean apply(int a, int b);
+
+    JamVal eval(Env env) { return BoolConstant.toBoolConstant(test(env)); }
+
+    boolean test(Env env) {
+      if (eager) return apply(arg1.evalInt(env, op), arg2.evalInt(env, op));
+      JamVal v = arg1.eval(env);
+      JamVal w = arg2.eval(env);
+      return apply(Evaluator.toInt(v, op), Evaluator.toInt(w, op));
+    }
+  }
+
+  static final class Equal extends Binary {
+    Equal(Code arg1, Code arg2) { super(arg1, arg2); }
+    JamVal eval(Env env) { return JamRuntime.equal(arg1.eval(env), arg2.eval(env)); }
+  }
+
+  static final class NotEqual extends Binary {
+    NotEqual(Code arg1, Code arg2) { super(arg1, arg2); }
+    JamVal eval(Env env) { return JamRuntime.notEqual(arg1.eval(env), arg2.eval(env)); }
+  }
+
+  static final class Less extends Comparison {
+    Less(Code arg1, Code arg2) { super(arg1, arg2, OpLessThan.ONLY); }
+    boolean apply(int a, int b) { return a < b; }
+  }
+
+  static final class Greater extends Comparison {
+    Greater(Code arg1, Code arg2) { super(arg1, arg2, OpGreaterThan.ONLY); }
+    boolean apply(int a, int b) { return a > b; }
+  }
+
+  static final class LessEqual extends Comparison {
+    LessEqual(Code arg1, Code arg2) { super(arg1, arg2, OpLessThanEquals.ONLY); }
+    boolean apply(int a, int b) { return a <= b; }
+  }
+
+  static final class GreaterEqual extends Comparison {
+    GreaterEqual(Code arg1, Code arg2) { super(arg1, arg2, OpGreaterThanEquals.ONLY); }
+    boolean apply(int a, int b) { return a >= b; }
+  }
+
+  static final class And extends Binary {
+    And(Code arg1, Code arg2) { super(arg1, arg2); }
+
+    JamVal eval(Env env) {
+      JamVal v = arg1.eval(env);
+      return Evaluator.toBool(v, OpAnd.ONLY).value() ? Evaluator.toBool(arg2.eval(env), OpAnd.ONLY) : v;
+    }
+  }
+
+  static final class Or extends Binary {
+    Or(Code arg1, Code arg2) { super(arg1, arg2); }
+
+    JamVal eval(Env env) {
+      JamVal v = arg1.eval(env);
+      return Evaluator.toBool(v, OpOr.ONLY).value() ? v : Evaluator.toBool(arg2.eval(env), OpOr.ONLY);
+    }
+  }
+
+  /** An application of a closure or of a primitive computed at run time */
+  static final class Apply extends Code {
+    private final Code rator;
+    private final Code[] args;
+
+    Apply(Code rator, Code[] args) {
+      this.rator = rator;
+      this.args = args;
+    }
+
+    JamVal eval(Env env) {
+      JamVal f = rator.eval(env);
+      JamRuntime.checkFunction(f, args.length);
+      if (! (f instanceof CodeClosure)) {
+        JamVal[] vals = new JamVal[args.length];
+        for (int i = 0; i < args.length; i++) vals[i] = args[i].eval(env);
+        return JamRuntime.applyPrim(f, vals);
+      }
+      CodeClosure closure = (CodeClosure) f;
+      JamVal[] slots = new JamVal[closure.frameSize];
+      for (int i = 0; i < args.length; i++) slots[i] = args[i].eval(env);
+      return closure.code.eval(new Env(slots, closure.captured()));
+    }
+  }
+
+  /** An application of a primitive to the wrong number of arguments, which fails after evaluating them */
+  static final class ApplyPrim extends Code {
+    private final PrimFun prim;
+    private final Code[] args;
+
+    ApplyPrim(PrimFun prim, Code[] args) {
+      this.prim = prim;
+      this.args = args;
+    }
+
+    JamVal eval(Env env) {
+      JamVal[] vals = new JamVal[args.length];
+      for (int i = 0; i < args.length; i++) vals[i] = args[i].eval(env);
+      return JamRuntime.applyPrim(prim, vals);
+    }
+  }
+
+  static final class IsFunction extends Code {
+    private final Code arg;
+    IsFunction(Code arg) { this.arg = arg; }
+    JamVal eval(Env env) { return JamRuntime.isFunction(arg.eval(env)); }
+  }
+
+  static final class IsNumber extends Code {
+    private final Code arg;
+    IsNumber(Code arg) { this.arg = arg; }
+    JamVal eval(Env env) { return JamRuntime.isNumber(arg.eval(env)); }
+  }
+
+  static final class IsList extends Code {
+    private final Code arg;
+    IsList(Code arg) { this.arg = arg; }
+    JamVal eval(Env env) { return JamRuntime.isList(arg.eval(env)); }
+  }
+
+  static final class IsCons extends Code {
+    private final Code arg;
+    IsCons(Code arg) { this.arg = arg; }
+    JamVal eval(Env env) { return JamRuntime.isCons(arg.eval(env)); }
+  }
+
+  static final class IsEmpty extends Code {
+    private final Code arg;
+    IsEmpty(Code arg) { this.arg = arg; }
+    JamVal eval(Env env) { return JamRuntime.isEmpty(arg.eval(env)); }
+  }
+
+  static final class Arity extends Code {
+    private final Code arg;
+    Arity(Code arg) { this.arg = arg; }
+    JamVal eval(Env env) { return JamRuntime.arity(arg.eval(env)); }
+  }
+
+  static final class ConsCode extends Code {
+    private final Code arg1, arg2;
+
+    ConsCode(Code arg1, Code arg2) {
+      this.arg1 = arg1;
+      this.arg2 = arg2;
+    }
+
+    JamVal eval(Env env) {
+      JamVal v = arg1.eval(env);
+      return JamRuntime.cons(v, arg2.eval(env));
+    }
+  }
+
+  static final class First extends Code {
+    private final Code arg;
+    First(Code arg) { this.arg = arg; }
+    JamVal eval(Env env) { return JamRuntime.first(arg.eval(env)); }
+  }
+
+  static final class Rest extends Code {
+    private final Code arg;
+    Rest(Code arg) { this.arg = arg; }
+    JamVal eval(Env env) { return JamRuntime.rest(arg.eval(env)); }
+  }
+
+  static final class MakeClosure extends Code {
+    private final FlatMap map;
+    private final Code body;
+
+    MakeClosure(FlatMap map, Code body) {
+      this.map = map;
+      this.body = body;
+    }
+
+    JamVal eval(Env env) {
+      BoundVar[] captures = map.captures;
+      JamVal[] captured = new JamVal[captures.length];
+      for (int i = 0; i < captures.length; i++) captured[i] = env.get(captures[i]);
+      return new CodeClosure(map, captured, body);
+    }
+  }
+
+  static final class IfCode extends Code {
+    private final Code test, conseq, alt;
+
+    IfCode(Code test, Code conseq, Code alt) {
+      this.test = test;
+      this.conseq = conseq;
+      this.alt = alt;
+    }
+
+    JamVal eval(Env env) { return test.test(env) ? conseq.eval(env) : alt.eval(env); }
+  }
+
+  static final class LetCode extends Code {
+    private final BoundVar[] lhs;
+    private final Code[] rhs;
+    private final Code body;
+
+    LetCode(BoundVar[] lhs, Code[] rhs, Code body) {
+      this.lhs = lhs;
+      this.rhs = rhs;
+      this.body = body;
+    }
+
+    JamVal eval(Env env) {
+      JamVal[] slots = env.slots;
+      for (BoundVar b : lhs) if (b.cell) slots[b.slot] = new Cell();
+      for (int i = 0; i < rhs.length; i++) {
+        JamVal value = rhs[i].eval(env);
+        if (lhs[i].cell) ((Cell) slots[lhs[i].slot]).value = value;
+        else slots[lhs[i].slot] = value;
+      }
+      return body.eval(env);
+    }
+  }
+}
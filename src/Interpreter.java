@@ -0,0 +1,652 @@
+/** A tree-walking interpreter for Jam.
+  *
+  * A program is evaluated in two passes.  At load time Resolver treats the program as the body of a Map of no
+  * arguments and gives every Map a single frame, holding its parameters and the variables bound by the Lets of its
+  * body outside nested Maps, and the list of its free variables.  It replaces every variable occurrence by a BoundVar
+  * holding its address: a slot of the frame of the Map in which it occurs or, for a free variable of that Map, an
+  * index into the values its closures capture.  At run time Evaluator keeps the environment as an Env, the frame of
+  * the application being evaluated and the captured values of the closure applied, so every variable reference is a
+  * single array access, and creating a closure copies the values of its free variables into a flat array, so that a
+  * closure keeps alive only the values it can reference.
+  *
+  * A variable bound by a Let that a closure captures before its right hand side has been evaluated (a recursive
+  * binding) is held in a Cell, created when the Let is entered and filled when the right hand side has been evaluated,
+  * which the frame and the closures share.  The slots of a frame are never reused, since a suspension of a lazy
+  * evaluation may read a slot after the Let that bound it has been evaluated.
+  *
+  * Let is recursive: every definition of a let is in scope in all of its right hand sides, which are evaluated in
+  * order; referring to a definition before its right hand side has been evaluated is an error.
+  *
+  * Besides call-by-value, the interpreter supports call-by-name and call-by-need evaluation (LazyEvaluator), in
+  * which the arguments of closures and the right hand sides of lets are bound to suspensions (NameBinding and
+  * NeedBinding) that are evaluated only when the variable is referenced.  The arguments of primitives are always
+  * evaluated eagerly.
+  *
+  * Evaluator recurses on the Java stack, once per level of Jam call nesting, so programs are evaluated on a thread
+  * whose stack size (1 GB by default, reserved but only committed as used) is set by the system property
+  * jam.stacksize.  With proper tail calls enabled, an application of a closure in tail position (a TailApp) does not
+  * nest: it returns the pending call to the nearest enclosing application, which runs it in a trampoline loop, so
+  * iteration written as tail recursion runs in constant Java stack.
+  */
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/** The exception thrown when the evaluation of a Jam program fails. */
+class EvalException extends RuntimeException {
+  EvalException(String s) { super(s); }
+}
+
+/** An interpreter for the Jam program read from a file or Reader, or given as an AST. */
+class Interpreter {
+
+  private final FlatMap program;
+  private long stackSize = STACK_SIZE;
+  private boolean tailCalls = false;
+  private CompiledProgram compiled;
+  private Code linked;
+
+  Interpreter(String fileName) throws IOException { this(new Parser(fileName).parse()); }
+
+  Interpreter(Reader reader) { this(new Parser(reader).parse()); }
+
+  Interpreter(AST program) { this.program = Resolver.resolve(program); }
+
+  static final long STACK_SIZE = Long.getLong("jam.stacksize", 1L << 30);
+
+  /** Sets the stack size of the evaluation thread; 0 evaluates on the calling thread */
+  Interpreter stackSize(long bytes) { stackSize = bytes; return this; }
+
+  /** Enables or disables proper tail calls in all evaluation modes */
+  Interpreter tailCalls(boolean on) { tailCalls = on; return this; }
+
+  /* evaluation modes */
+  static final int CALL_BY_VALUE = 0;
+  static final int CALL_BY_NAME = 1;
+  static final int CALL_BY_NEED = 2;
+  static final String[] MODES = { "value", "name", "need" };
+
+  /** Returns the value of the program using call-by-value evaluation */
+  public JamVal callByValue() { return eval(CALL_BY_VALUE); }
+
+  /** Returns the value of the program using call-by-name evaluation */
+  public JamVal callByName() { return eval(CALL_BY_NAME); }
+
+  /** Returns the value of the program using call-by-need evaluation */
+  public JamVal callByNeed() { return eval(CALL_BY_NEED); }
+
+  /** Returns the value of the program using the specified evaluation mode (CALL_BY_VALUE .. CALL_BY_NEED) */
+  JamVal eval(int mode) {
+    Evaluator evaluator = mode == CALL_BY_VALUE ? new Evaluator() : new LazyEvaluator(mode == CALL_BY_NEED);
+    return run(evaluator.tailCalls(tailCalls));
+  }
+
+  /** Returns the value of the program by running it compiled to a JVM class (see JamCompiler), which is
+    * call-by-value without proper tail calls.  The program is compiled on the first call. */
+  public JamVal callByValueCompiled() {
+    if (compiled == null) compiled = JamCompiler.compile(program.body());
+    return run(new Task() {
+      public JamVal run() { return compiled.run(); }
+    });
+  }
+
+  /** Returns the value of the program by running it linked to a tree of Code nodes (see ClosureCompiler), which is
+    * call-by-value without proper tail calls.  The program is linked on the first call. */
+  public JamVal callByValueLinked() {
+    if (linked == null) linked = ClosureCompiler.link(program);
+    return run(new Task() {
+      public JamVal run() { return linked.eval(new Env(new JamVal[program.frameSize], Env.NONE)); }
+    });
+  }
+
+  /** An evaluation of the program */
+  interface Task {
+    JamVal run();
+  }
+
+  private JamVal run(final Evaluator evaluator) {
+    return run(new Task() {
+      public JamVal run() { return evaluator.eval(program); }
+    });
+  }
+
+  /** Runs task on a thread with a stack of stackSize bytes. */
+  private JamVal run(final Task task) {
+    if (stackSize == 0) return task.run();
+    final JamVal[] result = new JamVal[1];
+    final Throwable[] failure = new Throwable[1];
+    Thread thread = new Thread(null, new Runnable() {
+      public void run() {
+        try { result[0] = task.run(); }
+        catch (Throwable t) { failure[0] = t; }
+      }
+    }, "Jam evaluator", stackSize);
+    thread.start();
+    try { thread.join(); }
+    catch (InterruptedException e) {
+      thread.interrupt();
+      Thread.currentThread().interrupt();
+      throw new EvalException("interrupted");
+    }
+    if (failure[0] instanceof RuntimeException) throw (RuntimeException) failure[0];
+    if (failure[0] instanceof Error) throw (Error) failure[0];
+    return result[0];
+  }
+
+  /** Returns the program with its variables resolved to addresses */
+  AST program() { return program.body(); }
+}
+
+/** A variable occurrence resolved to its address: a slot of the frame of the enclosing Map or, if captured, an index
+  * into the captured values of its closure; an unbound variable has slot -1.  The variable is held in a Cell if cell
+  * is set, which Resolver does once the Let binding it has been resolved. */
+class BoundVar extends Variable {
+  final boolean captured;
+  final int slot;
+  boolean cell;
+
+  BoundVar(String name, boolean captured, int slot) {
+    super(name);
+    this.captured = captured;
+    this.slot = slot;
+  }
+}
+
+/** A Map resolved by Resolver: the size of its frame and the addresses, in the enclosing Map, of the values its
+  * closures capture. */
+class FlatMap extends Map {
+  final int frameSize;
+  final BoundVar[] captures;
+
+  FlatMap(Variable[] vars, AST body, int frameSize, BoundVar[] captures) {
+    super(vars, body);
+    this.frameSize = frameSize;
+    this.captures = captures;
+  }
+}
+
+/** The run-time environment of an application of a closure: its frame, whose first slots hold the arguments and the
+  * rest the variables bound by Lets, and the values captured by the closure. */
+class Env {
+  static final JamVal[] NONE = new JamVal[0];
+
+  final JamVal[] slots;
+  final JamVal[] captured;
+
+  Env(JamVal[] slots, JamVal[] captured) {
+    this.slots = slots;
+    this.captured = captured;
+  }
+
+  /** Returns what the variable at b holds, which is its Cell if it has one */
+  JamVal get(BoundVar b) { return b.captured ? captured[b.slot] : slots[b.slot]; }
+}
+
+/** A mutable box holding the value of a recursive let binding, which a frame and closures share.  It is stored in
+  * place of the value, so it is a JamVal, which visitors see as its value. */
+class Cell implements JamVal {
+  JamVal value;
+
+  public <ResType> ResType accept(JamValVisitor<ResType> jvv) { return value.accept(jvv); }
+}
+
+/** The load-time pass that rebuilds an AST with every Variable occurrence replaced by a BoundVar, every Map by a
+  * FlatMap and every App in tail position within a Map body (the body itself, the conseq and alt of an If and the
+  * body of a Let in tail position) replaced by a TailApp. */
+class Resolver implements ASTVisitor<AST> {
+
+  /** A variable bound by a Map or a Let */
+  private static final class Declaration {
+    final String name;
+    final Function function;
+    final int slot;
+    /** Whether the right hand side binding it has been resolved, which parameters always have */
+    boolean defined;
+    /** Whether it is captured before it is defined, so it must be held in a Cell */
+    boolean cell;
+    final ArrayList<BoundVar> occurrences = new ArrayList<BoundVar>();
+
+    Declaration(String name, Function function, boolean defined) {
+      this.name = name;
+      this.function = function;
+      this.slot = function.frameSize++;
+      this.defined = defined;
+    }
+  }
+
+  /** A Map being resolved */
+  private static final class Function {
+    final Function parent;
+    int frameSize;
+    /** The index of each captured variable in the captured values, and its address in parent */
+    final IdentityHashMap<Declaration,Integer> captureIndex = new IdentityHashMap<Declaration,Integer>();
+    final ArrayList<BoundVar> captures = new ArrayList<BoundVar>();
+
+    Function(Function parent) { this.parent = parent; }
+  }
+
+  /** The variables bound by the enclosing scopes, innermost first */
+  private PureList<Declaration[]> scopes = new Empty<Declaration[]>();
+
+  /** The innermost enclosing Map */
+  private Function function = new Function(null);
+
+  /** Whether the AST being resolved is in tail position */
+  private boolean tail = false;
+
+  /** Resolves program as the body of a Map of no arguments */
+  static FlatMap resolve(AST program) {
+    Resolver resolver = new Resolver();
+    AST body = program.accept(resolver);
+    return new FlatMap(new Variable[0], body, resolver.function.frameSize, new BoundVar[0]);
+  }
+
+  private AST resolve(AST ast, boolean inTail) {
+    boolean saved = tail;
+    tail = inTail;
+    try { return ast.accept(this); }
+    finally { tail = saved; }
+  }
+
+  private AST[] resolveAll(AST[] asts) {
+    AST[] result = new AST[asts.length];
+    for (int i = 0; i < asts.length; i++) result[i] = resolve(asts[i], false);
+    return result;
+  }
+
+  /** Returns the address of d within f, adding it to the captures of f and of the Maps between if it is free in f */
+  private static BoundVar address(Declaration d, Function f) {
+    BoundVar b;
+    if (d.function == f) b = new BoundVar(d.name, false, d.slot);
+    else {
+      Integer index = f.captureIndex.get(d);
+      if (index == null) {
+        index = f.captures.size();
+        f.captures.add(address(d, f.parent));
+        f.captureIndex.put(d, index);
+      }
+      b = new BoundVar(d.name, true, index);
+      if (! d.defined) d.cell = true;
+    }
+    d.occurrences.add(b);
+    return b;
+  }
+
+  public AST forBoolConstant(BoolConstant b) { return b; }
+  public AST forIntConstant(IntConstant i) { return i; }
+  public AST forEmptyConstant(EmptyConstant n) { return n; }
+  public AST forJamEmpty(JamEmpty je) { return EmptyConstant.ONLY; }  // JamEmpty is only a value
+  public AST forPrimFun(PrimFun f) { return f; }
+
+  public AST forErrorNode(ErrorNode e) {
+    throw new EvalException("program has a syntax error: " + e.diagnostic().getMessage());
+  }
+
+  public AST forVariable(Variable v) {
+    String name = v.name();
+    for (PureList<Declaration[]> s = scopes; s instanceof Cons; s = ((Cons<Declaration[]>) s).rest()) {
+      Declaration[] frame = ((Cons<Declaration[]>) s).first();
+      // search from the end so that the last of duplicate names wins
+      for (int i = frame.length - 1; i >= 0; i--) if (frame[i].name.equals(name)) return address(frame[i], function);
+    }
+    return new BoundVar(name, false, -1);
+  }
+
+  public AST forUnOpApp(UnOpApp u) { return new UnOpApp(u.rator(), resolve(u.arg(), false)); }
+
+  public AST forBinOpApp(BinOpApp b) {
+    return new BinOpApp(b.rator(), resolve(b.arg1(), false), resolve(b.arg2(), false));
+  }
+
+  public AST forApp(App a) {
+    AST rator = resolve(a.rator(), false);
+    AST[] args = resolveAll(a.args());
+    return tail ? new TailApp(rator, args) : new App(rator, args);
+  }
+
+  public AST forMap(Map m) {
+    Variable[] vars = m.vars();
+    Function f = new Function(function);
+    Declaration[] params = new Declaration[vars.length];
+    for (int i = 0; i < vars.length; i++) params[i] = new Declaration(vars[i].name(), f, true);
+    PureList<Declaration[]> saved = scopes;
+    scopes = scopes.cons(params);
+    function = f;
+    try {
+      AST body = resolve(m.body(), true);
+      return new FlatMap(vars, body, f.frameSize, f.captures.toArray(new BoundVar[0]));
+    }
+    finally {
+      scopes = saved;
+      function = f.parent;
+    }
+  }
+
+  public AST forIf(If i) { return new If(resolve(i.test(), false), resolve(i.conseq(), tail), resolve(i.alt(), tail)); }
+
+  public AST forLet(Let l) {
+    Def[] defs = l.defs();
+    Declaration[] frame = new Declaration[defs.length];
+    for (int i = 0; i < defs.length; i++) frame[i] = new Declaration(defs[i].lhs().name(), function, false);
+    PureList<Declaration[]> saved = scopes;
+    scopes = scopes.cons(frame);
+    try {
+      Def[] newDefs = new Def[defs.length];
+      for (int i = 0; i < defs.length; i++) {
+        AST rhs = resolve(defs[i].rhs(), false);
+        frame[i].defined = true;
+        newDefs[i] = new Def(address(frame[i], function), rhs);
+      }
+      Let let = new Let(newDefs, resolve(l.body(), tail));
+      for (Declaration d : frame) if (d.cell) for (BoundVar b : d.occurrences) b.cell = true;
+      return let;
+    }
+    finally { scopes = saved; }
+  }
+}
+
+/** An application in tail position within the body of a Map, which Evaluator can run as a proper tail call. */
+class TailApp extends App {
+  TailApp(AST rator, AST[] args) { super(rator, args); }
+}
+
+/** The call-by-value evaluator for resolved ASTs. */
+class Evaluator implements ASTVisitor<JamVal> {
+
+  /** The environment of the expression being evaluated */
+  private Env env;
+
+  /** Whether TailApps are run as proper tail calls */
+  private boolean tailCalls = false;
+
+  /** The result of a TailApp that leaves its call pending, which is never seen outside the evaluator */
+  private static final JamVal TAIL_CALL = new JamVal() {
+    public <ResType> ResType accept(JamValVisitor<ResType> jvv) { throw new IllegalStateException("pending tail call"); }
+  };
+
+  /** The body and frame of the pending tail call */
+  private AST pendingBody;
+  private Env pendingEnv;
+
+  private final BinOpEvaluator binOps = new BinOpEvaluator();
+  private final PrimEvaluator prims = new PrimEvaluator();
+
+  Evaluator tailCalls(boolean on) { tailCalls = on; return this; }
+
+  /** Returns the value of the body of program, the Map of no arguments returned by Resolver */
+  JamVal eval(FlatMap program) {
+    env = new Env(new JamVal[program.frameSize], Env.NONE);
+    return program.body().accept(this);
+  }
+
+  /** Returns the value of exp in the environment e */
+  JamVal evalIn(AST exp, Env e) {
+    Env saved = env;
+    env = e;
+    try { return exp.accept(this); }
+    finally { env = saved; }
+  }
+
+  Env env() { return env; }
+
+  /** Returns what var is bound to for the value of exp in the current environment: the value itself in call-by-value
+    * evaluation. */
+  JamVal bind(Variable var, AST exp) { return exp.accept(this); }
+
+  public JamVal forBoolConstant(BoolConstant b) { return b; }
+  public JamVal forIntConstant(IntConstant i) { return i; }
+  public JamVal forEmptyConstant(EmptyConstant n) { return JamEmpty.ONLY; }
+  public JamVal forJamEmpty(JamEmpty je) { return je; }
+  public JamVal forPrimFun(PrimFun f) { return f; }
+
+  public JamVal forErrorNode(ErrorNode e) {
+    throw new EvalException("program has a syntax error: " + e.diagnostic().getMessage());
+  }
+
+  public JamVal forVariable(Variable v) {
+    BoundVar b = (BoundVar) v;
+    if (b.slot < 0) throw new EvalException("variable " + b + " is unbound");
+    JamVal value = env.get(b);
+    if (b.cell) value = ((Cell) value).value;
+    if (value == null) throw new EvalException("variable " + b + " is used before its definition");
+    return value;
+  }
+
+  public JamVal forUnOpApp(UnOpApp u) {
+    JamVal arg = u.arg().accept(this);
+    UnOp op = u.rator();
+    if (op == OpTilde.ONLY) return toBool(arg, op).not();
+    int i = toInt(arg, op);
+    return op == UnOpMinus.ONLY ? IntConstant.valueOf(-i) : arg;
+  }
+
+  public JamVal forBinOpApp(BinOpApp b) {
+    BinOp op = b.rator();
+    JamVal arg1 = b.arg1().accept(this);
+    // & and | evaluate their second argument only if needed
+    if (op == OpAnd.ONLY) return toBool(arg1, op).value() ? toBool(b.arg2().accept(this), op) : arg1;
+    if (op == OpOr.ONLY) return toBool(arg1, op).value() ? arg1 : toBool(b.arg2().accept(this), op);
+    return binOps.apply(op, arg1, b.arg2().accept(this));
+  }
+
+  public JamVal forApp(App a) {
+    JamVal rator = a.rator().accept(this);
+    AST[] args = a.args();
+    if (rator instanceof PrimFun) {
+      JamVal[] vals = new JamVal[args.length];
+      for (int i = 0; i < args.length; i++) vals[i] = args[i].accept(this);
+      return prims.apply((PrimFun) rator, vals);
+    }
+    if (! (rator instanceof JamClosure)) throw new EvalException(rator + " appears where a function was expected");
+    JamClosure closure = (JamClosure) rator;
+    FlatMap map = (FlatMap) closure.body();
+    Variable[] vars = map.vars();
+    if (vars.length != args.length)
+      throw new EvalException(closure + " applied to " + args.length + " arguments");
+    JamVal[] slots = new JamVal[map.frameSize];
+    for (int i = 0; i < args.length; i++) slots[i] = bind(vars[i], args[i]);
+    Env frame = new Env(slots, closure.captured());
+    if (tailCalls && a instanceof TailApp) {
+      pendingBody = map.body();
+      pendingEnv = frame;
+      return TAIL_CALL;
+    }
+    Env saved = env;
+    env = frame;
+    try {
+      JamVal result = map.body().accept(this);
+      // the trampoline, which runs the tail calls left pending by the body
+      while (result == TAIL_CALL) {
+        env = pendingEnv;
+        AST body = pendingBody;
+        pendingEnv = null;
+        pendingBody = null;
+        result = body.accept(this);
+      }
+      return result;
+    }
+    finally { env = saved; }
+  }
+
+  public JamVal forMap(Map m) {
+    BoundVar[] captures = ((FlatMap) m).captures;
+    JamVal[] captured = new JamVal[captures.length];
+    for (int i = 0; i < captures.length; i++) captured[i] = env.get(captures[i]);
+    return new JamClosure(m, captured);
+  }
+
+  public JamVal forIf(If i) {
+    JamVal test = i.test().accept(this);
+    if (! (test instanceof BoolConstant)) throw new EvalException("if test " + test + " is not a boolean");
+    return (test == BoolConstant.TRUE ? i.conseq() : i.alt()).accept(this);
+  }
+
+  public JamVal forLet(Let l) {
+    Def[] defs = l.defs();
+    JamVal[] slots = env.slots;
+    for (Def d : defs) {
+      BoundVar b = (BoundVar) d.lhs();
+      if (b.cell) slots[b.slot] = new Cell();
+    }
+    for (Def d : defs) {
+      BoundVar b = (BoundVar) d.lhs();
+      JamVal value = bind(b, d.rhs());
+      if (b.cell) ((Cell) slots[b.slot]).value = value;
+      else slots[b.slot] = value;
+    }
+    return l.body().accept(this);
+  }
+
+  static int toInt(JamVal v, Object op) {
+    if (! (v instanceof IntConstant)) throw new EvalException(op + " applied to non-integer " + v);
+    return ((IntConstant) v).value();
+  }
+
+  static BoolConstant toBool(JamVal v, Object op) {
+    if (! (v instanceof BoolConstant)) throw new EvalException(op + " applied to non-boolean " + v);
+    return (BoolConstant) v;
+  }
+}
+
+/** The call-by-name and call-by-need evaluator, which binds variables to suspensions of their expressions and
+  * evaluates a suspension whenever the variable is referenced, so a variable reference always yields a value. */
+class LazyEvaluator extends Evaluator {
+
+  /** Whether suspensions remember their values (call-by-need) */
+  private final boolean memoize;
+
+  LazyEvaluator(boolean memoize) { this.memoize = memoize; }
+
+  JamVal bind(Variable var, AST exp) {
+    return memoize ? new NeedBinding(var, exp, env(), this) : new NameBinding(var, exp, env(), this);
+  }
+
+  public JamVal forVariable(Variable v) {
+    JamVal value = super.forVariable(v);
+    return value instanceof NameBinding ? ((NameBinding) value).value() : value;
+  }
+}
+
+/** A call-by-name binding of a variable to an expression and the environment in which to evaluate it; the
+  * expression is evaluated every time the value is needed.  The binding is stored in a frame in place of the value,
+  * so it is a JamVal, which visitors see as its value. */
+class NameBinding extends Binding implements JamVal {
+  AST exp;
+  Env env;
+  final Evaluator evaluator;
+
+  NameBinding(Variable v, AST exp, Env env, Evaluator evaluator) {
+    super(v, null);
+    this.exp = exp;
+    this.env = env;
+    this.evaluator = evaluator;
+  }
+
+  public JamVal value() { return evaluator.evalIn(exp, env); }
+  public <ResType> ResType accept(JamValVisitor<ResType> jvv) { return value().accept(jvv); }
+}
+
+/** A call-by-need binding, which evaluates its expression the first time its value is needed and then remembers the
+  * value, dropping the expression and environment so they can be reclaimed. */
+class NeedBinding extends NameBinding {
+
+  NeedBinding(Variable v, AST exp, Env env, Evaluator evaluator) { super(v, exp, env, evaluator); }
+
+  public JamVal value() {
+    if (value == null) {
+      if (exp == null) throw new EvalException("variable " + var + " is defined in terms of itself");
+      AST e = exp;
+      exp = null;
+      value = evaluator.evalIn(e, env);
+      env = null;
+    }
+    return value;
+  }
+}
+
+/** Applies the strict binary operators to argument values; & and | are strict here, as the Evaluator handles their
+  * short-circuit forms itself. */
+class BinOpEvaluator implements BinOpVisitor<JamVal> {
+
+  private JamVal arg1, arg2;
+
+  JamVal apply(BinOp op, JamVal a1, JamVal a2) {
+    arg1 = a1;
+    arg2 = a2;
+    return op.accept(this);
+  }
+
+  private int int1(BinOp op) { return Evaluator.toInt(arg1, op); }
+  private int int2(BinOp op) { return Evaluator.toInt(arg2, op); }
+  private static JamVal bool(boolean b) { return BoolConstant.toBoolConstant(b); }
+
+  public JamVal forBinOpPlus(BinOpPlus op) { return IntConstant.valueOf(int1(op) + int2(op)); }
+  public JamVal forBinOpMinus(BinOpMinus op) { return IntConstant.valueOf(int1(op) - int2(op)); }
+  public JamVal forOpTimes(OpTimes op) { return IntConstant.valueOf(int1(op) * int2(op)); }
+
+  public JamVal forOpDivide(OpDivide op) {
+    int divisor = int2(op);
+    if (divisor == 0) throw new EvalException("division by zero");
+    return IntConstant.valueOf(int1(op) / divisor);
+  }
+
+  public JamVal forOpEquals(OpEquals op) { return bool(arg1.equals(arg2)); }
+  public JamVal forOpNotEquals(OpNotEquals op) { return bool(! arg1.equals(arg2)); }
+  public JamVal forOpLessThan(OpLessThan op) { return bool(int1(op) < int2(op)); }
+  public JamVal forOpGreaterThan(OpGreaterThan op) { return bool(int1(op) > int2(op)); }
+  public JamVal forOpLessThanEquals(OpLessThanEquals op) { return bool(int1(op) <= int2(op)); }
+  public JamVal forOpGreaterThanEquals(OpGreaterThanEquals op) { return bool(int1(op) >= int2(op)); }
+
+  public JamVal forOpAnd(OpAnd op) {
+    return bool(Evaluator.toBool(arg1, op).value() && Evaluator.toBool(arg2, op).value());
+  }
+
+  public JamVal forOpOr(OpOr op) {
+    return bool(Evaluator.toBool(arg1, op).value() || Evaluator.toBool(arg2, op).value());
+  }
+}
+
+/** Applies the primitive functions to argument values. */
+class PrimEvaluator implements PrimFunVisitor<JamVal> {
+
+  private PrimFun prim;
+  private JamVal[] args;
+
+  JamVal apply(PrimFun f, JamVal[] vals) {
+    int arity = f == ConsPrim.ONLY ? 2 : 1;
+    if (vals.length != arity) throw new EvalException(f + " applied to " + vals.length + " arguments");
+    prim = f;
+    args = vals;
+    return f.accept(this);
+  }
+
+  private static JamVal bool(boolean b) { return BoolConstant.toBoolConstant(b); }
+
+  private JamCons toCons() {
+    if (! (args[0] instanceof JamCons)) throw new EvalException(prim + " applied to " + args[0]);
+    return (JamCons) args[0];
+  }
+
+  public JamVal forFunctionPPrim() { return bool(args[0] instanceof JamFun); }
+  public JamVal forNumberPPrim() { return bool(args[0] instanceof IntConstant); }
+  public JamVal forListPPrim() { return bool(args[0] instanceof JamList); }
+  public JamVal forConsPPrim() { return bool(args[0] instanceof JamCons); }
+  public JamVal forEmptyPPrim() { return bool(args[0] instanceof JamEmpty); }
+
+  public JamVal forArityPrim() {
+    JamVal f = args[0];
+    if (f instanceof JamClosure) return IntConstant.valueOf(((JamClosure) f).body().vars().length);
+    if (f instanceof PrimFun) return IntConstant.valueOf(f == ConsPrim.ONLY ? 2 : 1);
+    throw new EvalException(prim + " applied to " + f);
+  }
+
+  public JamVal forConsPrim() {
+    if (! (args[1] instanceof JamList)) throw new EvalException(prim + " applied to non-list " + args[1]);
+    return ((JamList) args[1]).cons(args[0]);
+  }
+
+  public JamVal forFirstPrim() { return toCons().first(); }
+  public JamVal forRestPrim() { return toCons().rest(); }
+}
@@ -0,0 +1,472 @@
+/** A compiler from Jam ASTs to JVM classes.
+  *
+  * The compiler translates a program to the source of a single Java class, compiles it in memory with the JDK's
+  * javax.tools compiler and defines the result as a hidden class with MethodHandles.Lookup.defineHiddenClass, so
+  * the class can be unloaded once the CompiledProgram is unreachable and HotSpot compiles and inlines the Jam code
+  * like any other Java code.  (The JDK has no public bytecode assembler before the java.lang.classfile API, so the
+  * compiler goes through Java source, which needs only the jdk.compiler module of the JDK.)
+  *
+  * The generated code evaluates call-by-value, in the same order and with the same checks and error messages as
+  * Evaluator, so compiled and interpreted programs agree on every result.  Each Map becomes a static method
+  * m<k>(Object[] env, JamVal[] args); its closures (CompiledClosure) capture the values of the variables it uses
+  * from enclosing scopes in a flat array, and let-bound variables live in one element JamVal[] cells so that
+  * recursive definitions can capture them before they are defined.  Jam variables and intermediate results become
+  * Java locals.  Calls recurse on the Java stack; proper tail calls are not supported.
+  *
+  * A program so large that a method exceeds the JVM's 64 KB limit fails to compile with a CompileException; such
+  * programs must be interpreted.
+  */
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/** The exception thrown when a Jam program cannot be compiled. */
+class CompileException extends RuntimeException {
+  CompileException(String s) { super(s); }
+  CompileException(String s, Throwable cause) { super(s, cause); }
+}
+
+class JamCompiler implements ASTVisitor<String> {
+
+  /** The name of the generated class (before the JVM makes it unique as a hidden class) */
+  static final String CLASS_NAME = "JamProgram";
+
+  /** A Jam variable bound in the generated code */
+  private static class Local {
+    final String name;
+    /** the name of the Java local holding the value, or the cell for a let-bound variable */
+    final String java;
+    final boolean cell;
+    final Fun owner;
+
+    Local(String name, String java, boolean cell, Fun owner) {
+      this.name = name;
+      this.java = java;
+      this.cell = cell;
+      this.owner = owner;
+    }
+  }
+
+  /** A function being generated: the top level program (id 0) or a Map */
+  private static class Fun {
+    final Fun parent;
+    final int id;
+    final StringBuilder code = new StringBuilder();
+    /** the variables of enclosing functions used by this function, which its closures capture */
+    final ArrayList<Local> captured = new ArrayList<Local>();
+
+    Fun(Fun parent, int id) {
+      this.parent = parent;
+      this.id = id;
+    }
+  }
+
+  /** The variables in scope, innermost last */
+  private final ArrayList<Local> scope = new ArrayList<Local>();
+  /** The Maps compiled to methods m1, m2, ... */
+  private final ArrayList<Map> maps = new ArrayList<Map>();
+  /** The generated methods and constants */
+  private final StringBuilder members = new StringBuilder();
+  private int constants = 0;
+  private int locals = 0;
+  private Fun fun;
+
+  /** Compiles program (which may have been resolved by Resolver) to a CompiledProgram */
+  static CompiledProgram compile(AST program) {
+    JamCompiler compiler = new JamCompiler();
+    String source = compiler.generate(program);
+    return new CompiledProgram(define(source), compiler.maps.toArray(new Map[0]));
+  }
+
+  /** Returns the source of the class for program */
+  String generate(AST program) {
+    fun = new Fun(null, 0);
+    String result = program.accept(this);
+    emitMethod(fun, result);
+    StringBuilder source = new StringBuilder();
+    source.append("final class ").append(CLASS_NAME).append(" {\n");
+    source.append("  static Map[] maps;\n");
+    source.append("  static JamVal run() { return m0(null, null); }\n");
+    source.append("  static JamVal call(CompiledClosure f, JamVal[] args) {\n");
+    source.append("    switch (f.id) {\n");
+    for (int k = 1; k <= maps.size(); k++) 
+      source.append("      case ").append(k).append(": return m").append(k).append("(f.env, args);\n");
+    source.append("      default: throw new IllegalStateException(\"closure \" + f.id);\n");
+    source.append("    }\n");
+    source.append("  }\n");
+    source.append(members);
+    source.append("}\n");
+    return source.toString();
+  }
+
+  /** Appends the method for f, whose body has been generated into f.code, to the members. */
+  private void emitMethod(Fun f, String result) {
+    members.append("  static JamVal m").append(f.id).append("(Object[] env, JamVal[] args) {\n");
+    for (int i = 0; i < f.captured.size(); i++) {
+      Local l = f.captured.get(i);
+      String type = l.cell ? "JamVal[]" : "JamVal";
+      members.append("    ").append(type).append(' ').append(l.java).append(" = (").append(type).append(") env[")
+        .append(i).append("];\n");
+    }
+    members.append(f.code);
+    members.append("    return ").append(result).append(";\n");
+    members.append("  }\n");
+  }
+
+  private String newLocal() { return "t" + locals++; }
+
+  /** Emits a statement of the current function */
+  private void emit(String statement) { fun.code.append("    ").append(statement).append('\n'); }
+
+  /** Emits the declaration of a new local initialized to expression; returns the local's name. */
+  private String let(String expression) {
+    String t = newLocal();
+    emit("JamVal " + t + " = " + expression + ";");
+    return t;
+  }
+
+  /** Returns a static final field holding a constant value */
+  private String constant(String expression) {
+    String c = "C" + constants++;
+    members.append("  static final JamVal ").append(c).append(" = ").append(expression).append(";\n");
+    return c;
+  }
+
+  private static String prim(PrimFun f) { return f.getClass().getName() + ".ONLY"; }
+
+  /** Returns s as a Java string literal */
+  static String quote(String s) {
+    StringBuilder sb = new StringBuilder("\"");
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') sb.append('\\').append(c);
+      else if (c < ' ') sb.append(String.format("\\%03o", (int) c));
+      else if (c > '~') sb.append(String.format("\\u%04x", (int) c));
+      else sb.append(c);
+    }
+    return sb.append('"').toString();
+  }
+
+  public String forBoolConstant(BoolConstant b) { return b.value() ? "BoolConstant.TRUE" : "BoolConstant.FALSE"; }
+
+  public String forIntConstant(IntConstant i) {
+    int v = i.value();
+    if (v >= IntConstant.CACHE_LOW && v <= IntConstant.CACHE_HIGH) return "IntConstant.valueOf(" + v + ")";
+    return constant("IntConstant.valueOf(" + v + ")");
+  }
+
+  public String forEmptyConstant(EmptyConstant n) { return "JamEmpty.ONLY"; }
+  public String forJamEmpty(JamEmpty je) { return "JamEmpty.ONLY"; }
+  public String forPrimFun(PrimFun f) { return prim(f); }
+
+  public String forErrorNode(ErrorNode e) {
+    throw new CompileException("program has a syntax error: " + e.diagnostic().getMessage());
+  }
+
+  public String forVariable(Variable v) {
+    String name = v.name();
+    for (int i = scope.size() - 1; i >= 0; i--) {
+      Local l = scope.get(i);
+      if (l.name.equals(name)) {
+        for (Fun f = fun; f != l.owner; f = f.parent) if (! f.captured.contains(l)) f.captured.add(l);
+        // a let-bound variable is read (and checked) right away, so errors arise in evaluation order
+        return l.cell ? let("JamRuntime.get(" + l.java + ", " + quote(name) + ")") : l.java;
+      }
+    }
+    return let("JamRuntime.unbound(" + quote(name) + ")");
+  }
+
+  public String forUnOpApp(UnOpApp u) {
+    String arg = u.arg().accept(this);
+    UnOp op = u.rator();
+    String method = op == OpTilde.ONLY ? "not" : op == UnOpMinus.ONLY ? "negate" : "plus";
+    return let("JamRuntime." + method + "(" + arg + ")");
+  }
+
+  public String forBinOpApp(BinOpApp b) {
+    BinOp op = b.rator();
+    String arg1 = b.arg1().accept(this);
+    if (op == OpAnd.ONLY || op == OpOr.ONLY) {
+      // the second argument is evaluated only if needed
+      String result = newLocal();
+      String opName = op == OpAnd.ONLY ? "OpAnd.ONLY" : "OpOr.ONLY";
+      emit("JamVal " + result + ";");
+      emit("if (" + (op == OpAnd.ONLY ? "" : "! ") + "Evaluator.toBool(" + arg1 + ", " + opName + ").value()) {");
+      String arg2 = b.arg2().accept(this);
+      emit("  " + result + " = Evaluator.toBool(" + arg2 + ", " + opName + ");");
+      emit("}");
+      emit("else " + result + " = " + arg1 + ";");
+      return result;
+    }
+    String arg2 = b.arg2().accept(this);
+    return let("JamRuntime." + BINOP_METHODS[Arrays.asList(BINOPS).indexOf(op)] + "(" + arg1 + ", " + arg2 + ")");
+  }
+
+  private static final BinOp[] BINOPS = {
+    BinOpPlus.ONLY, BinOpMinus.ONLY, OpTimes.ONLY, OpDivide.ONLY, OpEquals.ONLY, OpNotEquals.ONLY, OpLessThan.ONLY,
+    OpGreaterThan.ONLY, OpLessThanEquals.ONLY, OpGreaterThanEquals.ONLY
+  };
+  private static final String[] BINOP_METHODS = {
+    "add", "subtract", "multiply", "divide", "equal", "notEqual", "less", "greater", "lessEqual", "greaterEqual"
+  };
+
+  public String forApp(App a) {
+    AST[] args = a.args();
+    String[] vals = new String[args.length];
+    if (a.rator() instanceof PrimFun) {
+      PrimFun f = (PrimFun) a.rator();
+      for (int i = 0; i < args.length; i++) vals[i] = args[i].accept(this);
+      int arity = f == ConsPrim.ONLY ? 2 : 1;
+      if (vals.length == arity) return let("JamRuntime." + PRIM_METHODS.get(f) + "(" + join(vals) + ")");
+      return let("JamRuntime.applyPrim(" + prim(f) + ", new JamVal[] {" + join(vals) + "})");
+    }
+    String rator = let(a.rator().accept(this));
+    emit("JamRuntime.checkFunction(" + rator + ", " + args.length + ");");
+    for (int i = 0; i < args.length; i++) vals[i] = args[i].accept(this);
+    String array = "new JamVal[] {" + join(vals) + "}";
+    return let(rator + " instanceof CompiledClosure ? call((CompiledClosure) " + rator + ", " + array + ")" +
+               " : JamRuntime.applyPrim(" + rator + ", " + array + ")");
+  }
+
+  private static final java.util.Map<PrimFun,String> PRIM_METHODS = new java.util.HashMap<PrimFun,String>();
+  static {
+    PrimFun[] prims = { FunctionPPrim.ONLY, NumberPPrim.ONLY, ListPPrim.ONLY, ConsPPrim.ONLY, EmptyPPrim.ONLY,
+                        ArityPrim.ONLY, ConsPrim.ONLY, FirstPrim.ONLY, RestPrim.ONLY };
+    String[] methods = { "isFunction", "isNumber", "isList", "isCons", "isEmpty", "arity", "cons", "first", "rest" };
+    for (int i = 0; i < prims.length; i++) PRIM_METHODS.put(prims[i], methods[i]);
+  }
+
+  private static String join(String[] vals) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < vals.length; i++) {
+      if (i > 0) sb.append(", ");
+      sb.append(vals[i]);
+    }
+    return sb.toString();
+  }
+
+  public String forMap(Map m) {
+    maps.add(m);
+    Fun f = new Fun(fun, maps.size());
+    Fun saved = fun;
+    int scopeSize = scope.size();
+    fun = f;
+    Variable[] vars = m.vars();
+    for (int i = 0; i < vars.length; i++) {
+      String p = newLocal();
+      emit("JamVal " + p + " = args[" + i + "];");
+      scope.add(new Local(vars[i].name(), p, false, f));
+    }
+    String result = m.body().accept(this);
+    fun = saved;
+    scope.subList(scopeSize, scope.size()).clear();
+    emitMethod(f, result);
+    String[] captured = new String[f.captured.size()];
+    for (int i = 0; i < captured.length; i++) captured[i] = f.captured.get(i).java;
+    return let("new CompiledClosure(maps[" + (f.id - 1) + "], " + f.id + ", new Object[] {" + join(captured) + "})");
+  }
+
+  public String forIf(If i) {
+    String test = i.test().accept(this);
+    String result = newLocal();
+    emit("JamVal " + result + ";");
+    emit("if (JamRuntime.test(" + test + ")) {");
+    String conseq = i.conseq().accept(this);
+    emit("  " + result + " = " + conseq + ";");
+    emit("}");
+    emit("else {");
+    String alt = i.alt().accept(this);
+    emit("  " + result + " = " + alt + ";");
+    emit("}");
+    return result;
+  }
+
+  public String forLet(Let l) {
+    Def[] defs = l.defs();
+    int scopeSize = scope.size();
+    String[] cells = new String[defs.length];
+    for (int i = 0; i < defs.length; i++) {
+      cells[i] = newLocal();
+      emit("JamVal[] " + cells[i] + " = new JamVal[1];");
+      scope.add(new Local(defs[i].lhs().name(), cells[i], true, fun));
+    }
+    for (int i = 0; i < defs.length; i++) {
+      String rhs = defs[i].rhs().accept(this);
+      emit(cells[i] + "[0] = " + rhs + ";");
+    }
+    String result = l.body().accept(this);
+    scope.subList(scopeSize, scope.size()).clear();
+    return result;
+  }
+
+  /** Compiles source in memory and defines the class as a hidden class in this package. */
+  private static MethodHandles.Lookup define(final String source) {
+    JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+    if (javac == null) throw new CompileException("no Java compiler is available (the JDK's jdk.compiler module)");
+    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+    StandardJavaFileManager files = javac.getStandardFileManager(diagnostics, null, null);
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ForwardingJavaFileManager<StandardJavaFileManager> output =
+      new ForwardingJavaFileManager<StandardJavaFileManager>(files) {
+      public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind,
+                                                 FileObject sibling) {
+        if (! className.equals(CLASS_NAME)) throw new IllegalStateException("unexpected class " + className);
+        return new SimpleJavaFileObject(URI.create("mem:///" + className + ".class"), kind) {
+          public OutputStream openOutputStream() { return bytes; }
+        };
+      }
+    };
+    JavaFileObject unit = new SimpleJavaFileObject(URI.create("mem:///" + CLASS_NAME + ".java"),
+                                                   JavaFileObject.Kind.SOURCE) {
+      public CharSequence getCharContent(boolean ignoreEncodingErrors) { return source; }
+    };
+    java.util.List<String> options =
+      Arrays.asList("-classpath", System.getProperty("java.class.path"), "-g:none", "-proc:none", "-nowarn");
+    if (! javac.getTask(null, output, diagnostics, options, null, Arrays.asList(unit)).call())
+      throw new CompileException("generated code does not compile: " + diagnostics.getDiagnostics());
+    try {
+      return MethodHandles.lookup().defineHiddenClass(bytes.toByteArray(), true);
+    }
+    catch (IllegalAccessException e) { throw new CompileException("cannot define the program class", e); }
+  }
+}
+
+/** A compiled Jam program. */
+class CompiledProgram {
+
+  private final MethodHandle run;
+
+  /** Links the program class defined by lookup to the Maps of its closures */
+  CompiledProgram(MethodHandles.Lookup lookup, Map[] maps) {
+    Class<?> program = lookup.lookupClass();
+    try {
+      lookup.findStaticSetter(program, "maps", Map[].class).invokeExact(maps);
+      run = lookup.findStatic(program, "run", MethodType.methodType(JamVal.class));
+    }
+    catch (Throwable t) { throw new CompileException("cannot link the program class", t); }
+  }
+
+  /** Runs the program on the calling thread and returns its value */
+  JamVal run() {
+    try { return (JamVal) run.invokeExact(); }
+    catch (RuntimeException e) { throw e; }
+    catch (Error e) { throw e; }
+    catch (Throwable t) { throw new EvalException(t.toString()); }
+  }
+}
+
+/** A closure created by compiled code: a Map, the index of the method implementing it and the captured values of
+  * the variables it uses from enclosing scopes (JamVals for parameters and cells for let-bound variables). */
+class CompiledClosure extends JamClosure {
+  final int id;
+  final Object[] env;
+
+  CompiledClosure(Map body, int id, Object[] env) {
+    super(body, null);
+    this.id = id;
+    this.env = env;
+  }
+}
+
+/** The operations called by compiled code, which check their arguments exactly as Evaluator does. */
+class JamRuntime {
+
+  private JamRuntime() {}
+
+  static JamVal get(JamVal[] cell, String name) {
+    JamVal value = cell[0];
+    if (value == null) throw new EvalException("variable " + name + " is used before its definition");
+    return value;
+  }
+
+  static JamVal unbound(String name) { throw new EvalException("variable " + name + " is unbound"); }
+
+  static boolean test(JamVal v) {
+    if (! (v instanceof BoolConstant)) throw new EvalException("if test " + v + " is not a boolean");
+    return v == BoolConstant.TRUE;
+  }
+
+  static JamVal not(JamVal v) { return Evaluator.toBool(v, OpTilde.ONLY).not(); }
+  static JamVal negate(JamVal v) { return IntConstant.valueOf(- Evaluator.toInt(v, UnOpMinus.ONLY)); }
+
+  static JamVal plus(JamVal v) {
+    Evaluator.toInt(v, UnOpPlus.ONLY);
+    return v;
+  }
+
+  private static int i(JamVal v, BinOp op) { return Evaluator.toInt(v, op); }
+  private static JamVal bool(boolean b) { return BoolConstant.toBoolConstant(b); }
+
+  static JamVal add(JamVal a, JamVal b) { return IntConstant.valueOf(i(a, BinOpPlus.ONLY) + i(b, BinOpPlus.ONLY)); }
+  static JamVal subtract(JamVal a, JamVal b) { return IntConstant.valueOf(i(a, BinOpMinus.ONLY) - i(b, BinOpMinus.ONLY)); }
+  static JamVal multiply(JamVal a, JamVal b) { return IntConstant.valueOf(i(a, OpTimes.ONLY) * i(b, OpTimes.ONLY)); }
+
+  static JamVal divide(JamVal a, JamVal b) {
+    int divisor = i(b, OpDivide.ONLY);
+    if (divisor == 0) throw new EvalException("division by zero");
+    return IntConstant.valueOf(i(a, OpDivide.ONLY) / divisor);
+  }
+
+  static JamVal equal(JamVal a, JamVal b) { return bool(a.equals(b)); }
+  static JamVal notEqual(JamVal a, JamVal b) { return bool(! a.equals(b)); }
+  static JamVal less(JamVal a, JamVal b) { return bool(i(a, OpLessThan.ONLY) < i(b, OpLessThan.ONLY)); }
+  static JamVal greater(JamVal a, JamVal b) { return bool(i(a, OpGreaterThan.ONLY) > i(b, OpGreaterThan.ONLY)); }
+
+  static JamVal lessEqual(JamVal a, JamVal b) {
+    return bool(i(a, OpLessThanEquals.ONLY) <= i(b, OpLessThanEquals.ONLY));
+  }
+
+  static JamVal greaterEqual(JamVal a, JamVal b) {
+    return bool(i(a, OpGreaterThanEquals.ONLY) >= i(b, OpGreaterThanEquals.ONLY));
+  }
+
+  /** Checks that f is a function that can be applied to n arguments, before the arguments are evaluated */
+  static void checkFunction(JamVal f, int n) {
+    if (f instanceof PrimFun) return;
+    if (! (f instanceof JamClosure)) throw new EvalException(f + " appears where a function was expected");
+    if (((JamClosure) f).body().vars().length != n) throw new EvalException(f + " applied to " + n + " arguments");
+  }
+
+  static JamVal applyPrim(JamVal f, JamVal[] args) { return new PrimEvaluator().apply((PrimFun) f, args); }
+
+  static JamVal isFunction(JamVal v) { return bool(v instanceof JamFun); }
+  static JamVal isNumber(JamVal v) { return bool(v instanceof IntConstant); }
+  static JamVal isList(JamVal v) { return bool(v instanceof JamList); }
+  static JamVal isCons(JamVal v) { return bool(v instanceof JamCons); }
+  static JamVal isEmpty(JamVal v) { return bool(v instanceof JamEmpty); }
+
+  static JamVal arity(JamVal f) {
+    if (f instanceof JamClosure) return IntConstant.valueOf(((JamClosure) f).body().vars().length);
+    if (f instanceof PrimFun) return IntConstant.valueOf(f == ConsPrim.ONLY ? 2 : 1);
+    throw new EvalException(ArityPrim.ONLY + " applied to " + f);
+  }
+
+  static JamVal cons(JamVal v, JamVal l) {
+    if (! (l instanceof JamList)) throw new EvalException(ConsPrim.ONLY + " applied to non-list " + l);
+    return ((JamList) l).cons(v);
+  }
+
+  static JamVal first(JamVal l) {
+    if (! (l instanceof JamCons)) throw new EvalException(FirstPrim.ONLY + " applied to " + l);
+    return ((JamCons) l).first();
+  }
+
+  static JamVal rest(JamVal l) {
+    if (! (l instanceof JamCons)) throw new EvalException(RestPrim.ONLY + " applied to " + l);
+    return ((JamCons) l).rest();
+  }
+}
@@ -0,0 +1,293 @@
+/** A seeded generator of syntactically valid Jam programs for load and scaling tests.
+  *
+  * A generated program is a let whose definitions are emitted until the requested size is reached, followed by a
+  * body expression.  Expressions are drawn from the grammar accepted by Parser (let, map, if, binary operator
+  * chains, unary operators, applications, constants, variables and the primitives installed by
+  * Lexer.initWordTable) with tunable weights, nesting depth, identifier pool size and list lengths.  The same seed
+  * and settings always produce the same program.
+  *
+  * The program is written to a Writer as it is generated; pending work is kept on an explicit stack whose size is
+  * bounded by the nesting depth, so neither the size of the program nor its depth is limited by memory or the Java
+  * stack.  Usage:
+  *
+  *   java JamGenerator <file> [size <bytes>[k|m|g]] [seed <n>] [depth <n>] [ids <n>] [args <n>] [defs <n>]
+  *                            [chain <n>] [mix <production>=<weight>,...]
+  */
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Random;
+
+class JamGenerator {
+
+  /* expression productions, which index the weights */
+  static final int LET = 0;
+  static final int MAP = 1;
+  static final int IF = 2;
+  static final int BINOP = 3;
+  static final int UNOP = 4;
+  static final int APP = 5;
+  static final int CONST = 6;
+  static final int VAR = 7;
+  static final int PRIM = 8;
+  static final String[] PRODUCTIONS = { "let", "map", "if", "binop", "unop", "app", "const", "var", "prim" };
+
+  static final String[] BINOPS = { "+", "-", "*", "/", "=", "!=", "<", ">", "<=", ">=", "&", "|" };
+  static final String[] UNOPS = { "+", "-", "~" };
+  static final String[] PRIMS =
+    { "number?", "function?", "list?", "empty?", "cons?", "arity", "cons", "first", "rest" };
+  static final String[] CONSTANTS = { "true", "false", "empty" };
+
+  private final Random random;
+  private long size = 1 << 20;
+  private int maxDepth = 8;
+  private int identifiers = 256;
+  private int maxArgs = 3;
+  private int maxDefs = 3;
+  private int maxChain = 3;
+  private final int[] weights = { 1, 1, 2, 4, 1, 3, 3, 4, 1 };
+
+  /* the work stack: a literal to write (texts[i] != null) or an expression or term still to be generated */
+  private String[] texts = new String[64];
+  private int[] depths = new int[64];
+  private boolean[] terms = new boolean[64];
+  private int top;
+
+  /* the number of chars written so far */
+  private long written;
+
+  JamGenerator(long seed) { random = new Random(seed); }
+
+  /** Sets the approximate size of generated programs in chars (bytes, as programs are ASCII) */
+  JamGenerator size(long chars) { size = chars; return this; }
+
+  /** Sets the maximum nesting depth of generated expressions */
+  JamGenerator maxDepth(int depth) { maxDepth = depth; return this; }
+
+  /** Sets the number of distinct identifiers used */
+  JamGenerator identifiers(int n) { identifiers = Math.max(1, n); return this; }
+
+  /** Sets the maximum number of arguments of applications and of parameters of maps */
+  JamGenerator maxArgs(int n) { maxArgs = Math.max(1, n); return this; }
+
+  /** Sets the maximum number of definitions in nested lets */
+  JamGenerator maxDefs(int n) { maxDefs = Math.max(1, n); return this; }
+
+  /** Sets the maximum number of terms in a binary operator chain */
+  JamGenerator maxChain(int n) { maxChain = Math.max(2, n); return this; }
+
+  /** Sets the relative weight of a production (one of LET .. PRIM) */
+  JamGenerator weight(int production, int weight) { weights[production] = Math.max(0, weight); return this; }
+
+  /** Writes a program to out; returns the number of chars written. */
+  long generate(Writer out) throws IOException {
+    written = 0;
+    write(out, "let\n");
+    int i = 0;
+    do {
+      write(out, "  ");
+      write(out, identifier(i++));
+      write(out, " := ");
+      generate(out, false, 0);
+      write(out, ";\n");
+    } while (written < size);
+    write(out, "in ");
+    generate(out, false, 0);
+    write(out, "\n");
+    return written;
+  }
+
+  /** Writes a program to the specified file; returns the number of chars written. */
+  long generate(String fileName) throws IOException {
+    Writer out = new BufferedWriter(new FileWriter(fileName), 1 << 16);
+    try { return generate(out); }
+    finally { out.close(); }
+  }
+
+  /** Writes an expression (or a term if term is true) at the specified depth. */
+  private void generate(Writer out, boolean term, int depth) throws IOException {
+    top = 0;
+    pushExp(term, depth);
+    while (top > 0) {
+      top--;
+      if (texts[top] != null) {
+        write(out, texts[top]);
+        texts[top] = null;
+      }
+      else expand(terms[top], depths[top]);
+    }
+  }
+
+  /** Pushes the pieces of a randomly chosen production for an expression or term, in reverse order. */
+  private void expand(boolean term, int depth) {
+    int production = choose(depth);
+    int d = depth + 1;
+    if (term && production <= BINOP) {
+      // not a term, so it must be enclosed in parentheses
+      pushText(")");
+      pushProduction(production, d);
+      pushText("(");
+    }
+    else pushProduction(production, d);
+  }
+
+  private void pushProduction(int production, int d) {
+    switch (production) {
+      case LET: {
+        pushExp(false, d);
+        pushText("in ");
+        for (int i = 1 + random.nextInt(maxDefs); i > 0; i--) {
+          pushText("; ");
+          pushExp(false, d);
+          pushText(identifier(random.nextInt(identifiers)) + " := ");
+        }
+        pushText("let ");
+        break;
+      }
+      case MAP: {
+        pushExp(false, d);
+        pushText(" to ");
+        int n = random.nextInt(maxArgs + 1);
+        for (int i = n; i > 0; i--) pushText(identifier(random.nextInt(identifiers)) + (i < n ? "," : ""));
+        pushText("map ");
+        break;
+      }
+      case IF:
+        pushExp(false, d);
+        pushText(" else ");
+        pushExp(false, d);
+        pushText(" then ");
+        pushExp(false, d);
+        pushText("if ");
+        break;
+      case BINOP:
+        for (int i = 2 + random.nextInt(maxChain - 1); i > 1; i--) {
+          pushExp(true, d);
+          pushText(" " + BINOPS[random.nextInt(BINOPS.length)] + " ");
+        }
+        pushExp(true, d);
+        break;
+      case UNOP:
+        pushExp(true, d);
+        pushText(UNOPS[random.nextInt(UNOPS.length)] + " ");
+        break;
+      case APP: {
+        pushText(")");
+        int n = random.nextInt(maxArgs + 1);
+        for (int i = n; i > 0; i--) {
+          if (i < n) pushText(", ");
+          pushExp(false, d);
+        }
+        int rator = random.nextInt(3);
+        if (rator == 0) pushText(PRIMS[random.nextInt(PRIMS.length)] + "(");
+        else if (rator == 1 || d >= maxDepth) pushText(identifier(random.nextInt(identifiers)) + "(");
+        else {
+          pushText(")(");
+          pushProduction(MAP, d + 1);
+          pushText("(");
+        }
+        break;
+      }
+      case CONST: {
+        int k = random.nextInt(8);
+        pushText(k < 3 ? CONSTANTS[k] : String.valueOf(random.nextInt(k < 6 ? 10 : 100000)));
+        break;
+      }
+      case VAR:
+        pushText(identifier(random.nextInt(identifiers)));
+        break;
+      case PRIM:
+        pushText(PRIMS[random.nextInt(PRIMS.length)]);
+        break;
+    }
+  }
+
+  /** Chooses a production by weight; at the maximum depth only leaves (constants, variables and primitives) are
+    * chosen. */
+  private int choose(int depth) {
+    int first = depth >= maxDepth ? CONST : LET;
+    int total = 0;
+    for (int p = first; p < weights.length; p++) total += weights[p];
+    if (total == 0) return VAR;
+    int r = random.nextInt(total);
+    for (int p = first; ; p++) {
+      r -= weights[p];
+      if (r < 0) return p;
+    }
+  }
+
+  private static String identifier(int i) { return "x" + i; }
+
+  private void pushText(String text) {
+    grow();
+    texts[top++] = text;
+  }
+
+  private void pushExp(boolean term, int depth) {
+    grow();
+    terms[top] = term;
+    depths[top++] = depth;
+  }
+
+  private void grow() {
+    if (top == texts.length) {
+      texts = Arrays.copyOf(texts, 2 * top);
+      depths = Arrays.copyOf(depths, 2 * top);
+      terms = Arrays.copyOf(terms, 2 * top);
+    }
+  }
+
+  private void write(Writer out, String text) throws IOException {
+    out.write(text);
+    written += text.length();
+  }
+
+  /** Returns a generated program of roughly the specified size as a String. */
+  static String program(long seed, long size) {
+    java.io.StringWriter out = new java.io.StringWriter();
+    try { new JamGenerator(seed).size(size).generate(out); }
+    catch (IOException e) { throw new AssertionError(e); }  // StringWriter does not throw IOException
+    return out.toString();
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length == 0 || args.length % 2 == 0) {
+      System.out.println("Usage: java JamGenerator <file> [size <bytes>[k|m|g]] [seed <n>] [depth <n>] [ids <n>] " +
+                         "[args <n>] [defs <n>] [chain <n>] [mix <production>=<weight>,...]");
+      return;
+    }
+    long seed = 0;
+    for (int i = 1; i < args.length; i += 2) if (args[i].equals("seed")) seed = Long.parseLong(args[i + 1]);
+    JamGenerator generator = new JamGenerator(seed);
+    for (int i = 1; i < args.length; i += 2) {
+      String option = args[i];
+      String value = args[i + 1];
+      if (option.equals("size")) generator.size(parseSize(value));
+      else if (option.equals("depth")) generator.maxDepth(Integer.parseInt(value));
+      else if (option.equals("ids")) generator.identifiers(Integer.parseInt(value));
+      else if (option.equals("args")) generator.maxArgs(Integer.parseInt(value));
+      else if (option.equals("defs")) generator.maxDefs(Integer.parseInt(value));
+      else if (option.equals("chain")) generator.maxChain(Integer.parseInt(value));
+      else if (option.equals("mix")) {
+        for (String entry : value.split(",")) {
+          String[] pair = entry.split("=");
+          int production = Arrays.asList(PRODUCTIONS).indexOf(pair[0]);
+          if (production < 0) throw new IllegalArgumentException("unknown production " + pair[0]);
+          generator.weight(production, Integer.parseInt(pair[1]));
+        }
+      }
+      else if (! option.equals("seed")) throw new IllegalArgumentException("unknown option " + option);
+    }
+    long chars = generator.generate(args[0]);
+    System.out.println("wrote " + chars + " bytes to " + args[0]);
+  }
+
+  private static long parseSize(String s) {
+    char unit = Character.toLowerCase(s.charAt(s.length() - 1));
+    int shift = unit == 'k' ? 10 : unit == 'm' ? 20 : unit == 'g' ? 30 : 0;
+    return Long.parseLong(shift == 0 ? s : s.substring(0, s.length() - 1)) << shift;
+  }
+}
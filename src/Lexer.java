@@ -4,7 +4,8 @@
   * Calling readToken() advances the cursor in the input stream to the next token.
   * 
   * The method peek() in the Lexer class has the same behavior as readToken() except for the fact that it does not
-  * advance the cursor.
+  * advance the cursor.  The method peek(k) looks k tokens further ahead, and mark() and reset() let a parser return
+  * to an earlier token without lexing the tokens in between again.
   */
 
 import java.io.BufferedReader;
@@ -15,7 +16,16 @@ import java.io.Reader;
 import java.io.StreamTokenizer;
 import java.util.HashMap;
 
-class Lexer extends StreamTokenizer {
+/** The token stream interface consumed by Parser.  Lexer is the reference implementation; alternate lexing engines
+  * (e.g., CharLexer) implement the same protocol and return the same Token objects. */
+interface TokenSource {
+  /** Returns the next token in the input stream without consuming it */
+  Token peek();
+  /** Reads the next Token in the input stream (consuming it); returns null at end of input */
+  Token readToken();
+}
+
+class Lexer extends StreamTokenizer implements TokenSource {
   
   /* short names for StreamTokenizer codes */
   
@@ -66,16 +76,34 @@ class Lexer extends StreamTokenizer {
   
   // wordtable for classifying words in token stream
   public HashMap<String,Token>  wordTable = new HashMap<String,Token>();
+  
+  /** The thread-safe table used instead of wordTable, if non-null, so that Variables are shared with other lexers */
+  private SymbolTable symbols;
 
-  /** The buffer holding the next token in the intput stream; it is used to support the peek() operation, which cannot
-    * be implemented using StreamTokenizer pushBack because some Tokens are composed of two StreamTokenizer tokens. */
-  Token buffer;
+  /* The ring buffer holding the tokens lexed ahead of the cursor, which supports peek() and peek(k), and the tokens
+   * retained for reset(); peek cannot be implemented using StreamTokenizer pushBack because some Tokens are composed
+   * of two StreamTokenizer tokens.  Counting the tokens of the input from 0, token i is held in
+   * ring[i & (ring.length - 1)]; next is the index of the next token to be read, lexed the number of tokens lexed,
+   * and the ring holds tokens next..lexed-1 and, if there are marks, all tokens from the oldest mark on.  The ring
+   * only grows when more tokens than it holds are peeked or marked, so reading, peeking and backtracking allocate
+   * nothing otherwise. */
+  private Token[] ring = new Token[8];
+  private int next = 0;
+  private int lexed = 0;
+
+  /** The stack of marked token indices */
+  private int[] marks = new int[4];
+  private int markTop = 0;
  
   /* constructors */
 
   /** Constructs a Lexer for the specified inputStream */
-  Lexer(Reader inputStream) {
+  Lexer(Reader inputStream) { this(inputStream, null); }
+
+  /** Constructs a Lexer for the specified inputStream that classifies words using the specified shared table */
+  Lexer(Reader inputStream, SymbolTable symbols) {
     super(new BufferedReader(inputStream));
+    this.symbols = symbols;
     initLexer();
   }
 
@@ -106,8 +134,7 @@ class Lexer extends StreamTokenizer {
     // `+' `-' `*' `/' `~' `=' `<' `>' `&' `|' `:' `;' `,' '!'
     // `(' `)' `[' `]' are ordinary characters (self-delimiting)
 
-    initWordTable();
-    buffer = null;  // buffer initially empty
+    if (symbols == null) initWordTable(wordTable);
   }
 
   /** Reads tokens until next end-of-line */
@@ -118,9 +145,45 @@ class Lexer extends StreamTokenizer {
   }
 
   /** Returns the next token in the input stream without consuming it */
-  public Token peek() { 
-    if (buffer == null) buffer = readToken();
-    return buffer;
+  public Token peek() { return peek(0); }
+
+  /** Returns the token k tokens after the next one in the input stream without consuming any; peek(0) is peek() */
+  public Token peek(int k) {
+    if (k < 0) throw new IllegalArgumentException("peek(" + k + ") before the next token");
+    while (lexed - next <= k) fill();
+    return ring[(next + k) & (ring.length - 1)];
+  }
+
+  /** Marks the position of the next token, so that reset() returns to it; marks nest */
+  public void mark() {
+    if (markTop == marks.length) marks = java.util.Arrays.copyOf(marks, 2 * markTop);
+    marks[markTop++] = next;
+  }
+
+  /** Returns to the position of the latest mark, which is removed; the tokens after it are read again from the ring
+    * rather than lexed again */
+  public void reset() {
+    if (markTop == 0) throw new IllegalStateException("reset() without mark()");
+    next = marks[--markTop];
+  }
+
+  /** Removes the latest mark without returning to it */
+  public void unmark() {
+    if (markTop == 0) throw new IllegalStateException("unmark() without mark()");
+    markTop--;
+  }
+
+  /** Lexes one more token into the ring, growing it if it is full */
+  private void fill() {
+    int first = markTop > 0 ? marks[0] : next;
+    if (lexed - first == ring.length) {
+      Token[] bigger = new Token[2 * ring.length];
+      for (int i = first; i != lexed; i++) bigger[i & (bigger.length - 1)] = ring[i & (ring.length - 1)];
+      ring = bigger;
+    }
+    Token token = lex();
+    ring[lexed & (ring.length - 1)] = token;
+    lexed++;
   }
     
   /** Reads the next token as defined by StreamTokenizer in the input stream (consuming it). */
@@ -131,35 +194,40 @@ class Lexer extends StreamTokenizer {
       int tokenType = nextToken();
       return tokenType;
     } catch(IOException e) {
-      throw new ParseException("IOException " + e + "thrown by nextToken()");
+      throw new ParseException("IOException " + e + "thrown by nextToken()", e);
     }
   }
 
   /** Reads the next Token in the input stream (consuming it) */
   public Token readToken() {
+    if (next == lexed) {
+      if (markTop == 0) return lex();  // nothing to buffer
+      fill();
+    }
+    return ring[next++ & (ring.length - 1)];
+  }
+
+  /** Lexes the next Token in the input stream */
+  private Token lex() {
     
     /* Uses getToken() to read next token and constructs the Token object representing that token.
      * NOTE: token representations for all Token classes except IntConstant are unique; a HashMap 
-     * is used to avoid duplication.  Hence, == can safely be used to compare all Tokens except 
+     * is used to avoid duplication.  IntConstants are shared only within the range cached by
+     * IntConstant.valueOf.  Hence, == can safely be used to compare all Tokens except 
      * IntConstants for equality (assuming that code does not gratuitously create Tokens).  When the
      * stream is reduced to EOT, returns null instead of a Token.
      */
     
-    if (buffer != null) {
-      Token token = buffer;
-      buffer = null;          // clear buffer
-      return token;
-    }
-    
     int tokenType = getToken();
     
     switch (tokenType) {
       
       case NUMBER:
         int value = (int) nval;
-        if (nval == (double) value) return new IntConstant(value);
+        if (nval == (double) value) return IntConstant.valueOf(value);
         throw new ParseException("The number " + nval + " is not a 32 bit integer");
       case WORD:
+        if (symbols != null) return symbols.intern(sval);
         Token regToken = wordTable.get(sval);
         if (regToken == null) {
           // must be new variable name
@@ -222,8 +290,8 @@ class Lexer extends StreamTokenizer {
     }
   }
     
-  /** Initializes the table of Strings used to recognize Tokens */
-  private void initWordTable() {
+  /** Initializes the table of Strings used to recognize Tokens; shared with the other lexing engines */
+  static void initWordTable(java.util.Map<String,Token> wordTable) {
     // initialize wordTable
     
     // constants
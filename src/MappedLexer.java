@@ -0,0 +1,74 @@
+/** A ScanLexer that lexes a program file straight out of a memory-mapped ByteBuffer.
+  *
+  * The file is decoded as UTF-8 on the fly.  ASCII bytes, which make up Jam programs in practice, are used directly
+  * as chars.  A multi-byte sequence encoding a character from 128 to 255 is decoded so that it is rejected exactly as
+  * Lexer rejects it; every other non-ASCII byte belongs to a character above 255 and hence to a word, so it is
+  * reported as WIDE_CHAR and only words containing such bytes are decoded as a whole.
+  *
+  * Token positions are byte offsets, and mappable files are limited to 2 GB.
+  */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+class MappedLexer extends ScanLexer {
+
+  private final ByteBuffer bytes;
+
+  /** Constructs a MappedLexer for the bytes bytes[start..end) */
+  MappedLexer(ByteBuffer bytes, int start, int end) { this(bytes, start, end, null); }
+
+  /** Constructs a MappedLexer for the bytes bytes[start..end) that classifies words using the specified shared table */
+  MappedLexer(ByteBuffer bytes, int start, int end, SymbolTable symbols) {
+    super(start, end, symbols);
+    this.bytes = bytes;
+  }
+
+  /** Constructs a MappedLexer for the contents of the specified buffer from position to limit */
+  MappedLexer(ByteBuffer bytes) { this(bytes, (SymbolTable) null); }
+
+  /** Constructs a MappedLexer for the contents of the specified buffer from position to limit that classifies words
+    * using the specified shared table */
+  MappedLexer(ByteBuffer bytes, SymbolTable symbols) { this(bytes, bytes.position(), bytes.limit(), symbols); }
+
+  /** Constructs a MappedLexer for the contents of the specified file, which is mapped into memory */
+  MappedLexer(String fileName) throws IOException { this(map(fileName)); }
+
+  /** Constructs a MappedLexer for the contents of the specified file that classifies words using the specified shared
+    * table */
+  MappedLexer(String fileName, SymbolTable symbols) throws IOException { this(map(fileName), symbols); }
+
+  /** Maps the specified file read-only into memory. */
+  static MappedByteBuffer map(String fileName) throws IOException {
+    try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) throw new IOException(fileName + " is too large to map (" + size + " bytes)");
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+  }
+
+  int charAt(int i) {
+    int b = bytes.get(i);
+    if (b >= 0) return b;
+    b &= 0xFF;
+    // 0xC2 and 0xC3 lead the two byte encodings of the characters from 128 to 255, which are illegal in Jam
+    if ((b == 0xC2 || b == 0xC3) && i + 1 < limit) return ((b & 0x1F) << 6) | (bytes.get(i + 1) & 0x3F);
+    return WIDE_CHAR;
+  }
+
+  int width(int i) {
+    int b = bytes.get(i) & 0xFF;
+    return (b == 0xC2 || b == 0xC3) && i + 1 < limit ? 2 : 1;
+  }
+
+  String text(int start, int end) {
+    byte[] word = new byte[end - start];
+    bytes.get(start, word);
+    return new String(word, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,201 @@
+/** The constructors of the composite AST nodes used by Parser.  The plain factory ONLY allocates a fresh node per
+  * call; a HashConsingFactory returns one shared node for structurally equal subtrees. */
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+class NodeFactory {
+
+  static final NodeFactory ONLY = new NodeFactory();
+
+  NodeFactory() {}
+
+  UnOpApp newUnOpApp(UnOp rator, AST arg) { return new UnOpApp(rator, arg); }
+  BinOpApp newBinOpApp(BinOp rator, AST arg1, AST arg2) { return new BinOpApp(rator, arg1, arg2); }
+  App newApp(AST rator, AST[] args) { return new App(rator, args); }
+  Map newMap(Variable[] vars, AST body) { return new Map(vars, body); }
+  If newIf(AST test, AST conseq, AST alt) { return new If(test, conseq, alt); }
+  Let newLet(Def[] defs, AST body) { return new Let(defs, body); }
+  Def newDef(Variable lhs, AST rhs) { return new Def(lhs, rhs); }
+}
+
+/** A NodeFactory that hash-conses nodes: it returns the node it already made for the same kind of node with the same
+  * operator and the same children, so that structurally equal subtrees built through the factory are one shared
+  * (immutable) instance and can be compared with ==.
+  *
+  * Children are compared by identity, which is structural equality for children built through the same factory,
+  * except that IntConstants, which the lexer creates afresh, are compared by value.  Variables are the lexer's, so
+  * subtrees of different programs are only shared when their parsers intern identifiers in one SymbolTable.
+  *
+  * The table is a ConcurrentHashMap from the shape of a node (its kind, operator and children) to a weak reference to
+  * the node, so a factory may be shared by parsers on any number of threads.  The shapes in the table refer to their
+  * children weakly too (except IntConstants), so the table keeps no node alive and a dropped AST is collected whole.
+  * The entries of collected nodes are removed by the next call to a new method or size(); until then each holds its
+  * Shape and NodeRef but no node.
+  */
+class HashConsingFactory extends NodeFactory {
+
+  /** A factory shared by default; use it with SymbolTable.SHARED to share subtrees across programs. */
+  static final HashConsingFactory SHARED = new HashConsingFactory();
+
+  private final ConcurrentHashMap<Shape,NodeRef> table = new ConcurrentHashMap<Shape,NodeRef>(1024);
+  private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+
+  /** The kind, operator and children of a node, which is the key of the node in the table.  The Shape looked up holds
+    * its children; the Shape stored in the table holds weak references to them (see stored()). */
+  private static final class Shape {
+    /** The operator of a UnOpApp or BinOpApp, or the class of any other node */
+    final Object op;
+    final Object[] parts;
+    final int hash;
+    /** Whether parts holds weak references to the children other than IntConstants */
+    final boolean weak;
+
+    Shape(Object op, Object[] parts) {
+      this.op = op;
+      this.parts = parts;
+      int h = op.hashCode();
+      for (Object part : parts) {
+        h = 31 * h + (part instanceof IntConstant ? part.hashCode() : System.identityHashCode(part));
+      }
+      hash = h;
+      weak = false;
+    }
+
+    private Shape(Shape s) {
+      op = s.op;
+      parts = new Object[s.parts.length];
+      for (int i = 0; i < parts.length; i++) {
+        Object part = s.parts[i];
+        parts[i] = part instanceof IntConstant ? part : new WeakReference<Object>(part);
+      }
+      hash = s.hash;
+      weak = true;
+    }
+
+    /** Returns the Shape to store in the table, which does not keep the children alive */
+    Shape stored() { return new Shape(this); }
+
+    /** Returns child i, or null if it has been collected */
+    Object part(int i) {
+      Object part = parts[i];
+      return weak && part instanceof WeakReference ? ((WeakReference<?>) part).get() : part;
+    }
+
+    public int hashCode() { return hash; }
+
+    public boolean equals(Object other) {
+      if (! (other instanceof Shape)) return false;
+      Shape s = (Shape) other;
+      if (this == s) return true;
+      if (hash != s.hash || op != s.op || parts.length != s.parts.length) return false;
+      for (int i = 0; i < parts.length; i++) {
+        Object a = part(i), b = s.part(i);
+        if (a == null || b == null) return false;
+        if (a != b && ! (a instanceof IntConstant && a.equals(b))) return false;
+      }
+      return true;
+    }
+  }
+
+  /** A weak reference to a node that remembers the node's Shape, so that its entry can be removed */
+  private static final class NodeRef extends WeakReference<Object> {
+    final Shape shape;
+
+    NodeRef(Object node, Shape shape, ReferenceQueue<Object> queue) {
+      super(node, queue);
+      this.shape = shape;
+    }
+  }
+
+  /** Returns the number of entries in the table, after removing those of the nodes collected so far */
+  int size() {
+    purge();
+    return table.size();
+  }
+
+  /** Clears and enqueues the references to the nodes in the table, as the collector does once the nodes are
+    * unreachable, so that their entries are removed by the next call */
+  void clear() {
+    for (NodeRef ref : table.values()) {
+      ref.clear();
+      ref.enqueue();
+    }
+  }
+
+  /** Returns the node for shape, using the node made by make if there is none */
+  private Object intern(Shape shape, Maker make) {
+    purge();
+    while (true) {
+      NodeRef ref = table.get(shape);
+      Object node = ref == null ? null : ref.get();
+      if (node != null) return node;
+      node = make.make();
+      Shape key = ref == null ? shape.stored() : ref.shape;
+      NodeRef newRef = new NodeRef(node, key, collected);
+      if (ref == null ? table.putIfAbsent(key, newRef) == null : table.replace(key, ref, newRef)) return node;
+    }
+  }
+
+  /** Makes the node of a Shape that is not in the table */
+  private interface Maker {
+    Object make();
+  }
+
+  /** Removes the entries of collected nodes */
+  private void purge() {
+    for (Object ref = collected.poll(); ref != null; ref = collected.poll()) {
+      table.remove(((NodeRef) ref).shape, ref);
+    }
+  }
+
+  private static Object[] parts(Object first, Object[] rest) {
+    Object[] parts = new Object[rest.length + 1];
+    parts[0] = first;
+    System.arraycopy(rest, 0, parts, 1, rest.length);
+    return parts;
+  }
+
+  UnOpApp newUnOpApp(final UnOp rator, final AST arg) {
+    return (UnOpApp) intern(new Shape(rator, new Object[] { arg }), new Maker() {
+      public Object make() { return new UnOpApp(rator, arg); }
+    });
+  }
+
+  BinOpApp newBinOpApp(final BinOp rator, final AST arg1, final AST arg2) {
+    return (BinOpApp) intern(new Shape(rator, new Object[] { arg1, arg2 }), new Maker() {
+      public Object make() { return new BinOpApp(rator, arg1, arg2); }
+    });
+  }
+
+  App newApp(final AST rator, final AST[] args) {
+    return (App) intern(new Shape(App.class, parts(rator, args)), new Maker() {
+      public Object make() { return new App(rator, args); }
+    });
+  }
+
+  Map newMap(final Variable[] vars, final AST body) {
+    return (Map) intern(new Shape(Map.class, parts(body, vars)), new Maker() {
+      public Object make() { return new Map(vars, body); }
+    });
+  }
+
+  If newIf(final AST test, final AST conseq, final AST alt) {
+    return (If) intern(new Shape(If.class, new Object[] { test, conseq, alt }), new Maker() {
+      public Object make() { return new If(test, conseq, alt); }
+    });
+  }
+
+  Let newLet(final Def[] defs, final AST body) {
+    return (Let) intern(new Shape(Let.class, parts(body, defs)), new Maker() {
+      public Object make() { return new Let(defs, body); }
+    });
+  }
+
+  Def newDef(final Variable lhs, final AST rhs) {
+    return (Def) intern(new Shape(Def.class, new Object[] { lhs, rhs }), new Maker() {
+      public Object make() { return new Def(lhs, rhs); }
+    });
+  }
+}
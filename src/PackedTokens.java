@@ -0,0 +1,154 @@
+/** A token stream packed into parallel int arrays, produced by ScanLexer.lexPacked() and consumed by Parser without
+  * creating Token objects.
+  *
+  * Token i has a kind code kinds[i], a payload payloads[i] and the input offset starts[i] at which it begins.  The
+  * payload of an INT token is its value and the payload of a VARIABLE token is a symbol id, which indexes the
+  * Variables of the stream; all other tokens are singletons identified by their kind alone (see TOKENS) and have no
+  * payload.  A lexical error ends the stream: it is kept as the failure of the stream and thrown by kind(i) when a
+  * reader reaches the end, which is where a streaming lexer would have thrown it.
+  */
+
+import java.util.Arrays;
+
+class PackedTokens {
+
+  /* kind codes, grouped so that the classes of tokens used by Parser are ranges */
+  static final int EOF = 0;
+  static final int VARIABLE = 1;
+  static final int INT = 2;                  // constants: INT .. FALSE
+  static final int EMPTY = 3;
+  static final int TRUE = 4;
+  static final int FALSE = 5;
+  static final int NUMBER_P = 6;             // primitives: NUMBER_P .. REST
+  static final int FUNCTION_P = 7;
+  static final int LIST_P = 8;
+  static final int EMPTY_P = 9;
+  static final int CONS_P = 10;
+  static final int ARITY = 11;
+  static final int CONS = 12;
+  static final int FIRST = 13;
+  static final int REST = 14;
+  static final int IF = 15;
+  static final int THEN = 16;
+  static final int ELSE = 17;
+  static final int LET = 18;
+  static final int IN = 19;
+  static final int MAP = 20;
+  static final int TO = 21;
+  static final int BIND = 22;
+  static final int LEFT_PAREN = 23;
+  static final int RIGHT_PAREN = 24;
+  static final int LEFT_BRACK = 25;
+  static final int RIGHT_BRACK = 26;
+  static final int COMMA = 27;
+  static final int SEMICOLON = 28;
+  static final int PLUS = 29;                // operators: PLUS .. OR
+  static final int MINUS = 30;
+  static final int TIMES = 31;
+  static final int DIVIDE = 32;
+  static final int EQUALS = 33;
+  static final int NOT_EQUALS = 34;
+  static final int LESS_THAN = 35;
+  static final int GREATER_THAN = 36;
+  static final int LESS_THAN_EQUALS = 37;
+  static final int GREATER_THAN_EQUALS = 38;
+  static final int NOT = 39;
+  static final int AND = 40;
+  static final int OR = 41;
+
+  /** The singleton Token of each kind code, or null for EOF, VARIABLE and INT */
+  static final Token[] TOKENS = {
+    null, null, null, EmptyConstant.ONLY, BoolConstant.TRUE, BoolConstant.FALSE,
+    NumberPPrim.ONLY, FunctionPPrim.ONLY, ListPPrim.ONLY, EmptyPPrim.ONLY, ConsPPrim.ONLY,
+    ArityPrim.ONLY, ConsPrim.ONLY, FirstPrim.ONLY, RestPrim.ONLY,
+    Lexer.IF, Lexer.THEN, Lexer.ELSE, Lexer.LET, Lexer.IN, Lexer.MAP, Lexer.TO, Lexer.BIND,
+    LeftParen.ONLY, RightParen.ONLY, LeftBrack.ONLY, RightBrack.ONLY, Comma.ONLY, SemiColon.ONLY,
+    Lexer.PLUS, Lexer.MINUS, Lexer.TIMES, Lexer.DIVIDE, Lexer.EQUALS, Lexer.NOT_EQUALS, Lexer.LESS_THAN,
+    Lexer.GREATER_THAN, Lexer.LESS_THAN_EQUALS, Lexer.GREATER_THAN_EQUALS, Lexer.NOT, Lexer.AND, Lexer.OR
+  };
+
+  private int[] kinds, payloads, starts;
+  private int size = 0;
+
+  /** The Variables of the stream indexed by symbol id */
+  Variable[] symbols;
+
+  /** The lexical error that ended the stream, if any */
+  ParseException failure;
+
+  /** Constructs an empty stream with room for capacity tokens */
+  PackedTokens(int capacity) {
+    capacity = Math.max(capacity, 16);
+    kinds = new int[capacity];
+    payloads = new int[capacity];
+    starts = new int[capacity];
+  }
+
+  /** Returns the kind code of the singleton token, which must not be a Variable or an IntConstant */
+  static int kindOf(Token token) {
+    for (int kind = EMPTY; kind < TOKENS.length; kind++) if (TOKENS[kind] == token) return kind;
+    throw new IllegalArgumentException("Token " + token + " has no fixed kind");
+  }
+
+  static boolean isConstant(int kind) { return kind >= INT && kind <= FALSE; }
+
+  static boolean isPrim(int kind) { return kind >= NUMBER_P && kind <= REST; }
+
+  static boolean isOp(int kind) { return kind >= PLUS; }
+
+  /** Returns the OpToken of an operator kind */
+  static OpToken op(int kind) { return (OpToken) TOKENS[kind]; }
+
+  /** Appends a token */
+  void add(int kind, int payload, int start) {
+    if (size == kinds.length) {
+      kinds = Arrays.copyOf(kinds, 2 * size);
+      payloads = Arrays.copyOf(payloads, 2 * size);
+      starts = Arrays.copyOf(starts, 2 * size);
+    }
+    kinds[size] = kind;
+    payloads[size] = payload;
+    starts[size] = start;
+    size++;
+  }
+
+  /** Returns the number of tokens */
+  int size() { return size; }
+
+  /** Returns the kind of token i, or EOF for i >= size(); throws the failure of the stream, if any, instead of
+    * returning EOF */
+  int kind(int i) {
+    if (i < size) return kinds[i];
+    if (failure != null) throw failure;
+    return EOF;
+  }
+
+  int payload(int i) { return payloads[i]; }
+
+  /** Returns the input offset of token i */
+  int start(int i) { return starts[i]; }
+
+  /** Returns the Variable with the specified symbol id */
+  Variable symbol(int id) { return symbols[id]; }
+
+  /** Returns token i as a Token, or null for EOF */
+  Token token(int i) {
+    int kind = kind(i);
+    if (kind == INT) return IntConstant.valueOf(payloads[i]);
+    if (kind == VARIABLE) return symbols[payloads[i]];
+    return TOKENS[kind];
+  }
+
+  /** Returns a TokenSource reading the tokens of this stream as Tokens, for consumers of TokenSource */
+  TokenSource source() {
+    return new TokenSource() {
+      private int next = 0;
+      public Token peek() { return token(next); }
+      public Token readToken() {
+        Token token = token(next);
+        if (token != null) next++;
+        return token;
+      }
+    };
+  }
+}
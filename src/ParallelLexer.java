@@ -0,0 +1,178 @@
+/** Parallel tokenization of large programs: the input is split into chunks that are lexed by ScanLexers on the
+  * workers of a ForkJoinPool, and the tokens of the chunks are stitched into one array in input order.
+  *
+  * Every chunk but the first starts just after a line break, where the sequential lexer can be neither inside a
+  * token nor inside a // comment, since Jam has no tokens or comments spanning lines.  The only constructs that span
+  * a line break are the operators <=, >=, != and :=, whose halves may be separated by whitespace and comments; when a
+  * chunk ends in < or > and the next starts with =, stitching joins them, and when a chunk fails at its very end (on
+  * a ! or : whose = is in the next chunk), it is lexed again together with the next chunk.  Any other error is
+  * genuine and is thrown, after all earlier chunks have been stitched, so the first error in the input is reported.
+  * Chunk lexers intern their words in one SymbolTable, so the result equals the tokens of sequential lexing: the
+  * same singletons, equal IntConstants, and one Variable per identifier.
+  */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+class ParallelLexer {
+
+  /** The default size of a chunk in input units */
+  static final int CHUNK_SIZE = 1 << 20;
+
+  /** The text being lexed */
+  private abstract static class Input {
+    abstract int length();
+    abstract boolean isLineBreak(int i);
+    abstract ScanLexer lexer(int start, int end, SymbolTable symbols);
+  }
+
+  private ParallelLexer() {}
+
+  /** Returns the tokens of text, lexed in chunks of CHUNK_SIZE chars on the common ForkJoinPool */
+  static Token[] lex(char[] text) { return lex(text, new SymbolTable(), ForkJoinPool.commonPool(), CHUNK_SIZE); }
+
+  /** Returns the tokens of text, lexed in chunks of about chunkSize chars on pool, interning words in symbols */
+  static Token[] lex(final char[] text, SymbolTable symbols, ForkJoinPool pool, int chunkSize) {
+    return lex(new Input() {
+      int length() { return text.length; }
+      boolean isLineBreak(int i) { return text[i] == '\n' || text[i] == '\r'; }
+      ScanLexer lexer(int start, int end, SymbolTable symbols) { return new CharLexer(text, start, end, symbols); }
+    }, symbols, pool, chunkSize);
+  }
+
+  /** Returns the tokens of the UTF-8 text bytes[position..limit), e.g. a memory-mapped file, lexed in chunks of about
+    * chunkSize bytes on pool, interning words in symbols */
+  static Token[] lex(final ByteBuffer bytes, SymbolTable symbols, ForkJoinPool pool, int chunkSize) {
+    final int base = bytes.position();
+    return lex(new Input() {
+      int length() { return bytes.limit() - base; }
+      boolean isLineBreak(int i) { return bytes.get(base + i) == '\n' || bytes.get(base + i) == '\r'; }
+      ScanLexer lexer(int start, int end, SymbolTable symbols) {
+        return new MappedLexer(bytes, base + start, base + end, symbols);
+      }
+    }, symbols, pool, chunkSize);
+  }
+
+  private static Token[] lex(final Input input, final SymbolTable symbols, ForkJoinPool pool, int chunkSize) {
+    if (chunkSize <= 0) throw new IllegalArgumentException("chunk size " + chunkSize + " is not positive");
+    final int[] bounds = bounds(input, chunkSize);
+    final int n = bounds.length - 1;
+    final ChunkTask[] tasks = new ChunkTask[n];
+    for (int i = 0; i < n; i++) tasks[i] = new ChunkTask(input, bounds[i], bounds[i + 1], symbols);
+    if (n == 1) tasks[0].invoke();
+    else pool.invoke(new RecursiveAction() {
+      protected void compute() { ForkJoinTask.invokeAll(tasks); }
+    });
+
+    TokenBuffer result = new TokenBuffer();
+    for (int i = 0; i < n; i++) {
+      TokenBuffer chunk = tasks[i].join();
+      // a chunk that failed at its end is lexed again together with the following chunks until it succeeds or fails
+      // earlier
+      while (chunk.failure != null && chunk.failedAtEnd && i + 1 < n) {
+        i++;
+        chunk = lexChunk(input, chunk.start, bounds[i + 1], symbols);
+      }
+      if (result.size > 0 && chunk.size > 0 && chunk.tokens[0] == Lexer.EQUALS) {
+        Token last = result.tokens[result.size - 1];
+        if (last == Lexer.LESS_THAN) result.tokens[result.size - 1] = Lexer.LESS_THAN_EQUALS;
+        if (last == Lexer.GREATER_THAN) result.tokens[result.size - 1] = Lexer.GREATER_THAN_EQUALS;
+        if (last == Lexer.LESS_THAN || last == Lexer.GREATER_THAN) chunk.tokens[0] = null;
+      }
+      result.addAll(chunk);
+      if (chunk.failure != null) throw chunk.failure;
+    }
+    return Arrays.copyOf(result.tokens, result.size);
+  }
+
+  /** Returns the chunk boundaries: 0, the position after the first line break at or beyond each multiple of
+    * chunkSize, and the length of the input */
+  private static int[] bounds(Input input, int chunkSize) {
+    int length = input.length();
+    int[] bounds = new int[length / chunkSize + 2];
+    int n = 0;
+    bounds[n++] = 0;
+    for (int i = chunkSize; i < length; ) {
+      int b = i;
+      while (b < length && ! input.isLineBreak(b)) b++;
+      if (b + 1 >= length) break;
+      bounds[n++] = b + 1;
+      // the next multiple may lie beyond Integer.MAX_VALUE for inputs close to 2 GB
+      if (b + 1 > length - chunkSize) break;
+      i = b + 1 + chunkSize;
+    }
+    bounds[n++] = length;
+    return Arrays.copyOf(bounds, n);
+  }
+
+  /** The tokens of a chunk, and the ParseException that ended it, if any */
+  private static final class TokenBuffer {
+    final int start;
+    Token[] tokens = new Token[1024];
+    int size = 0;
+    ParseException failure;
+    /** Whether the failure was thrown at the end of the chunk */
+    boolean failedAtEnd;
+
+    TokenBuffer() { this(0); }
+    TokenBuffer(int start) { this.start = start; }
+
+    void add(Token t) {
+      if (size == tokens.length) tokens = Arrays.copyOf(tokens, 2 * size);
+      tokens[size++] = t;
+    }
+
+    /** Appends the tokens of chunk, skipping a null first token (one joined to the preceding chunk) */
+    void addAll(TokenBuffer chunk) {
+      int from = chunk.size > 0 && chunk.tokens[0] == null ? 1 : 0;
+      int count = chunk.size - from;
+      if (size + count > tokens.length) tokens = Arrays.copyOf(tokens, Math.max(2 * tokens.length, size + count));
+      System.arraycopy(chunk.tokens, from, tokens, size, count);
+      size += count;
+    }
+  }
+
+  private static TokenBuffer lexChunk(Input input, int start, int end, SymbolTable symbols) {
+    TokenBuffer chunk = new TokenBuffer(start);
+    ScanLexer lexer = input.lexer(start, end, symbols);
+    try {
+      for (Token t = lexer.readToken(); t != null; t = lexer.readToken()) chunk.add(t);
+    }
+    catch (ParseException e) {
+      chunk.failure = e;
+      chunk.failedAtEnd = lexer.pos == lexer.limit;
+    }
+    return chunk;
+  }
+
+  private static final class ChunkTask extends RecursiveTask<TokenBuffer> {
+    private final Input input;
+    private final int start, end;
+    private final SymbolTable symbols;
+
+    ChunkTask(Input input, int start, int end, SymbolTable symbols) {
+      this.input = input;
+      this.start = start;
+      this.end = end;
+      this.symbols = symbols;
+    }
+
+    protected TokenBuffer compute() { return lexChunk(input, start, end, symbols); }
+  }
+}
+
+/** A TokenSource reading an array of tokens, such as the result of ParallelLexer.lex, so that Parser can parse it. */
+class TokenArray implements TokenSource {
+  private final Token[] tokens;
+  private int next = 0;
+
+  TokenArray(Token[] tokens) { this.tokens = tokens; }
+
+  public Token peek() { return next < tokens.length ? tokens[next] : null; }
+
+  public Token readToken() { return next < tokens.length ? tokens[next++] : null; }
+}
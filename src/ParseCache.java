@@ -0,0 +1,179 @@
+/** A cache of parsed programs in front of Parser.parse(), keyed by the SHA-256 digest of the program text.
+  *
+  * The memory tier holds at most maxEntries ASTs and evicts the least recently used.  The optional disk tier keeps
+  * the AST of every program parsed through the cache as a file in a directory, encoded by ASTCodec, and is consulted
+  * on a memory miss, decoding the file in place by memory-mapping it.  Its files are written to a temporary name and
+  * renamed, so concurrent caches on one directory never read a partial file, and a file that cannot be decoded is
+  * treated as a miss and replaced.  A hit in either tier skips lexing and parsing entirely.  Since ASTs are
+  * immutable, one AST is shared by all callers that parse the same text; the identity of its Variables is not shared
+  * with any other program.
+  *
+  * The cache may be shared by callers who do not trust each other, so a hit must mean the same text, not merely a
+  * likely one: a fast non-cryptographic hash can be inverted to make a chosen program collide with another, which
+  * would then be served the wrong AST.  Memory entries are therefore compared by their whole digest, and each disk
+  * file starts with the digest of its program, which is checked before decoding, so a file copied or renamed to
+  * another program's name is a miss.  Finding two texts with the same SHA-256 digest is infeasible.
+  *
+  * All methods are thread-safe; parsing and disk access happen outside the lock of the memory tier.
+  */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+class ParseCache {
+
+  private final int maxEntries;
+  private final File directory;
+  private final LinkedHashMap<Key,AST> memory;
+
+  private long hits, misses, evictions, diskHits, diskWrites;
+
+  /** Constructs a memory-only cache of at most maxEntries programs */
+  ParseCache(int maxEntries) { this(maxEntries, null); }
+
+  /** Constructs a cache of at most maxEntries programs in memory backed by the specified directory, which is created
+    * if necessary; a null directory disables the disk tier */
+  ParseCache(int maxEntries, File directory) {
+    if (maxEntries <= 0) throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+    this.maxEntries = maxEntries;
+    this.directory = directory;
+    if (directory != null) directory.mkdirs();
+    memory = new LinkedHashMap<Key,AST>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(java.util.Map.Entry<Key,AST> eldest) {
+        if (size() <= ParseCache.this.maxEntries) return false;
+        evictions++;
+        return true;
+      }
+    };
+  }
+
+  /** The cache key of a program text: its digest */
+  private static final class Key {
+    final byte[] digest;
+
+    Key(byte[] digest) { this.digest = digest; }
+
+    public int hashCode() { return Arrays.hashCode(digest); }
+
+    public boolean equals(Object other) { return other instanceof Key && Arrays.equals(((Key) other).digest, digest); }
+
+    String fileName() {
+      StringBuilder name = new StringBuilder(2 * digest.length + 5);
+      for (byte b : digest) name.append(Character.forDigit(b >> 4 & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      return name.append(".jast").toString();
+    }
+  }
+
+  /** Returns the name of the disk file of the program text */
+  static String fileName(char[] program) { return new Key(digest(program, 0, program.length)).fileName(); }
+
+  /** The length of a digest, which starts every disk file */
+  static final int DIGEST_LENGTH = 32;
+
+  /** Returns the SHA-256 digest of the program text text[start..end), taking each char as two bytes */
+  static byte[] digest(char[] text, int start, int end) {
+    MessageDigest sha;
+    try { sha = MessageDigest.getInstance("SHA-256"); }
+    catch (NoSuchAlgorithmException e) { throw new IllegalStateException(e); }  // every JVM provides SHA-256
+    byte[] chunk = new byte[8192];
+    while (start < end) {
+      int n = Math.min(end - start, chunk.length / 2);
+      for (int i = 0; i < n; i++) {
+        char c = text[start + i];
+        chunk[2 * i] = (byte) (c >> 8);
+        chunk[2 * i + 1] = (byte) c;
+      }
+      sha.update(chunk, 0, 2 * n);
+      start += n;
+    }
+    return sha.digest();
+  }
+
+  /** Returns the AST of the program, parsing it only if it is in neither tier */
+  AST parse(String program) { return parse(program.toCharArray()); }
+
+  /** Returns the AST of the program text, parsing it only if it is in neither tier */
+  AST parse(char[] program) {
+    Key key = new Key(digest(program, 0, program.length));
+    AST ast;
+    synchronized (this) {
+      ast = memory.get(key);
+      if (ast != null) {
+        hits++;
+        return ast;
+      }
+    }
+    ast = readFile(key);
+    if (ast == null) {
+      ast = new Parser(program).parse();
+      synchronized (this) { misses++; }
+      writeFile(key, ast);
+    }
+    synchronized (this) { memory.put(key, ast); }
+    return ast;
+  }
+
+  private AST readFile(Key key) {
+    if (directory == null) return null;
+    File file = new File(directory, key.fileName());
+    if (! file.isFile()) return null;
+    try {
+      ByteBuffer bytes = MappedLexer.map(file.getPath());
+      if (bytes.limit() < DIGEST_LENGTH) return null;
+      for (int i = 0; i < DIGEST_LENGTH; i++) if (bytes.get(i) != key.digest[i]) return null;  // another program
+      bytes.position(DIGEST_LENGTH);
+      AST ast = ASTCodec.decode(bytes);
+      synchronized (this) { diskHits++; }
+      return ast;
+    }
+    catch (IOException e) { return null; }  // unreadable, corrupt or of another version: parse and rewrite it
+  }
+
+  private void writeFile(Key key, AST ast) {
+    if (directory == null) return;
+    File file = new File(directory, key.fileName());
+    File temp = null;
+    try {
+      temp = File.createTempFile(key.fileName(), ".tmp", directory);
+      byte[] encoded = ASTCodec.encode(ast);
+      byte[] contents = Arrays.copyOf(key.digest, DIGEST_LENGTH + encoded.length);
+      System.arraycopy(encoded, 0, contents, DIGEST_LENGTH, encoded.length);
+      Files.write(temp.toPath(), contents);
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      synchronized (this) { diskWrites++; }
+    }
+    catch (IOException e) {  // the disk tier is only an optimization
+      if (temp != null) temp.delete();
+    }
+  }
+
+  /** Returns the number of programs found in memory */
+  synchronized long hits() { return hits; }
+
+  /** Returns the number of programs that were parsed */
+  synchronized long misses() { return misses; }
+
+  /** Returns the number of programs evicted from memory */
+  synchronized long evictions() { return evictions; }
+
+  /** Returns the number of programs read from disk */
+  synchronized long diskHits() { return diskHits; }
+
+  /** Returns the number of programs written to disk */
+  synchronized long diskWrites() { return diskWrites; }
+
+  /** Returns the number of programs in memory */
+  synchronized int size() { return memory.size(); }
+
+  public synchronized String toString() {
+    return "ParseCache(" + memory.size() + "/" + maxEntries + " in memory, " + hits + " hits, " + diskHits +
+      " disk hits, " + misses + " misses, " + evictions + " evictions, " + diskWrites + " disk writes)";
+  }
+}
@@ -1,19 +1,80 @@
 
 
 import java.io.*;
+import java.nio.CharBuffer;
 import java.util.*;
 
 /** Exception class for representing parsing errors. */
 class ParseException extends RuntimeException {
-  ParseException(String s) { super(s); }
+  private final int line, column;
+
+  ParseException(String s) { this(s, true); }
+
+  /** Constructs a ParseException for an error at the specified line and column, which prefix the message */
+  ParseException(String s, int line, int column) { this(s, line, column, true); }
+
+  /** Constructs a ParseException, recording a stack trace only if trace is true */
+  ParseException(String s, boolean trace) {
+    super(s, null, true, trace);
+    line = column = 0;
+  }
+
+  /** Constructs a ParseException for a failure of the input itself, such as an IOException, rather than a syntax
+    * error */
+  ParseException(String s, Throwable cause) {
+    super(s, cause);
+    line = column = 0;
+  }
+
+  /** Constructs a ParseException for an error at the specified line and column, recording a stack trace only if trace
+    * is true */
+  ParseException(String s, int line, int column, boolean trace) {
+    super(line + ":" + column + ": " + s, null, true, trace);
+    this.line = line;
+    this.column = column;
+  }
+
+  /** Returns the line of the error counting from 1, or 0 if it is unknown */
+  int line() { return line; }
+
+  /** Returns the column of the error counting from 1, or 0 if it is unknown */
+  int column() { return column; }
 }
 
 /** A parser class for Jam.  Each program requires a separate parser object. */
 class Parser {
   
-  private Lexer in;
+  private TokenSource in;
+
+  /** The diagnostics collected in recovery mode, or null in fail-fast mode */
+  private List<ParseException> diagnostics;
+
+  /** The number of tokens read when the last syntax error was reported in recovery mode */
+  private int reportedAt = -1;
+
+  /** The packed token stream parsed by parse(), if the parser was constructed for one, and the index of its next
+    * token */
+  private PackedTokens packed;
+  private int next;
+
+  /** The constructors of the nodes of the AST */
+  private NodeFactory nodes = NodeFactory.ONLY;
+
+  /** The table recording the spans of the nodes built by parse() in span tracking mode, and the lexer providing their
+    * positions; both are null otherwise */
+  private SourceSpans spans;
+  private ScanLexer scanner;
+  
+  /** A growable scratch buffer used as a stack for collecting the elements of argument lists, variable lists and
+    * definition lists; a nested list is collected above the elements of the enclosing one.  Completed lists are
+    * copied out into arrays of exactly the right size, so parsing a list allocates nothing per element. */
+  private Object[] scratch = new Object[16];
+  private int scratchTop = 0;
+  
+  private static final AST[] NO_ASTS = new AST[0];
+  private static final Variable[] NO_VARIABLES = new Variable[0];
   
-  Parser(Lexer i) {
+  Parser(TokenSource i) {
     in = i;
   }
   
@@ -21,12 +82,68 @@ class Parser {
   
   Parser(String fileName) throws IOException { this(new FileReader(fileName)); }
   
-  Lexer lexer() { return in; }
+  /** Constructs a Parser that lexes the specified program text with the char-array engine CharLexer */
+  Parser(char[] program) { this(new CharLexer(program)); }
+  
+  /** Constructs a Parser that lexes the remaining contents of the specified buffer with CharLexer */
+  Parser(CharBuffer program) { this(new CharLexer(program)); }
+
+  /** Constructs a Parser for the specified program text whose Variables are interned in the specified shared table, 
+    * so that parsers on any number of threads produce the same Variable for the same identifier */
+  Parser(char[] program, SymbolTable symbols) { this(new CharLexer(program, 0, program.length, symbols)); }
+  
+  /** Constructs a Parser for a packed token stream; parse() reads it without creating Tokens */
+  Parser(PackedTokens tokens) {
+    this(tokens.source());
+    packed = tokens;
+  }
+
+  /** Returns a Parser for the contents of the specified file that lexes it in place by memory-mapping it */
+  static Parser newMappedParser(String fileName) throws IOException { return new Parser(new MappedLexer(fileName)); }
+  
+  TokenSource lexer() { return in; }
+
+  /** Builds the AST through the specified factory, e.g. a HashConsingFactory */
+  Parser nodes(NodeFactory factory) { nodes = factory; return this; }
+
+  /** Turns on recovery mode: parse() reports each syntax error by adding a ParseException to diagnostics instead of
+    * throwing it, replaces the expression containing it by an ErrorNode, skips to the next `;', in, then, else, `)'
+    * or to and continues, so that one pass finds all errors.  Lexical errors are reported and the offending
+    * characters skipped.  Each token is skipped at most once, so the work stays linear in the size of the input. */
+  Parser recover(List<ParseException> diagnostics) {
+    if (packed != null) throw new IllegalArgumentException("recovery is not supported on packed tokens");
+    this.diagnostics = diagnostics;
+    in = new Recovering(in);
+    return this;
+  }
+
+  /** Turns on span tracking: parse() records the span of every composite node it builds in table and reports the
+    * line and column of errors.  The parser must read a ScanLexer, e.g. a CharLexer or a MappedLexer. */
+  Parser spans(SourceSpans table) {
+    TokenSource lexer = in instanceof Recovering ? ((Recovering) in).lexer : in;
+    if (!(lexer instanceof ScanLexer)) throw new IllegalArgumentException("span tracking requires a ScanLexer");
+    spans = table;
+    scanner = (ScanLexer) lexer;
+    return this;
+  }
 
   /** Parses a Jam program which is simply an expression (Exp) */
   public AST parse() throws ParseException {
+    if (packed != null) return parsePacked();
+    if (spans == null || diagnostics != null) return parseProgram();
+    try {
+      return parseProgram();
+    }
+    catch (ParseException e) {
+      // the offending token, or the token that could not be lexed, starts at scanner.start()
+      long lineColumn = scanner.lineColumn(scanner.start());
+      throw new ParseException(e.getMessage(), (int) (lineColumn >>> 32), (int) lineColumn);
+    }
+  }
+
+  private AST parseProgram() {
     // Parse the main expression and obtain its AST
-    AST progAST = parseExp();
+    AST progAST = parseSubExp();
 
     // Read the next token to check for end of file or extra tokens
     Token nextToken = in.readToken();
@@ -35,6 +152,24 @@ class Parser {
     if (nextToken == null) {
       return progAST;
     }
+    else if (diagnostics != null) {
+      // In recovery mode, report the extra data and go on checking the rest of the input: skip to a synchronizing
+      // token and parse the expression after it, until the end of the input
+      report("Unexpected data");
+      do {
+        if (isSync(nextToken)) {
+          parseSubExp();
+          nextToken = in.readToken();
+          if (nextToken != null) report("Unexpected data");
+        }
+        else {
+          ((Recovering) in).unread(nextToken);
+          skip();
+          nextToken = in.readToken();
+        }
+      } while (nextToken != null);
+      return progAST;
+    }
     else {
       // If there is an extra token, throw an error indicating unexpected data
       throw new ParseException("Unexpected data");
@@ -50,6 +185,7 @@ class Parser {
   private AST parseExp() {
     // Read the next token from the input to determine the type of expression to parse
     Token token = in.readToken();
+    int start = start();
 
     // Directly return the appropriate AST based on the token type
     if (token == Lexer.IF) {
@@ -74,13 +210,14 @@ class Parser {
           error(nextToken, "binary operator");
       }
       AST newTerm = parseTerm(in.readToken());
-      exp = new BinOpApp(op.toBinOp(), exp, newTerm);
+      exp = span(nodes.newBinOpApp(op.toBinOp(), exp, newTerm), start);
       nextToken = in.peek();
     }
     return exp;
   }
 
   private AST parseTerm(Token token) {
+    int start = start();
     // Check for unary opeartions
     if (token instanceof OpToken) {
       OpToken opToken = (OpToken) token;
@@ -89,7 +226,7 @@ class Parser {
         error(opToken, "unary operator");
       }
       // Parse the term following the unary operator recursively
-      return new UnOpApp(opToken.toUnOp(), parseTerm(in.readToken()));
+      return span(nodes.newUnOpApp(opToken.toUnOp(), parseTerm(in.readToken())), start);
     }
 
     // Directly return the token if it is a constant
@@ -106,7 +243,7 @@ class Parser {
       in.readToken(); // Consume the opening parenthesis
       AST[] arguments = parseArgs(); // Parse function arguments, including the closing parenthesis
       // Create an application AST node with the parsed factgor and arguments
-      return new App(factorAST, arguments);
+      return span(nodes.newApp(factorAST, arguments), start);
     }
     
     // If there's no function application, return the factor AST node
@@ -116,10 +253,10 @@ class Parser {
   private AST parseFactor(Token token) {
     // Handle parsing when the token represents an expression enclosed in parentheses
     if (token == LeftParen.ONLY) {
-      AST exp = parseExp(); // Parse the expression inside the parentheses
+      AST exp = parseSubExp(); // Parse the expression inside the parentheses
       token = in.readToken(); // Read the next token, expecting a closing parenthese
       if (token != RightParen.ONLY) {
-        error(token, "')'");
+        missing(token, RightParen.ONLY, "')'");
       }
       return exp;
     }
@@ -134,32 +271,34 @@ class Parser {
   }
 
   private AST parseIf() {
+    int start = start();
     // Parse the condition expression of the if statement
-    AST condition = parseExp();
+    AST condition = parseSubExp();
 
     // Expect the 'then' keyword following the condition expression
     Token thenToken = in.readToken();
     if (thenToken != Lexer.THEN) {
-      error(thenToken, "'then'"); // Report an error if 'then' keyword is missing
+      missing(thenToken, Lexer.THEN, "'then'"); // Report an error if 'then' keyword is missing
     }
 
     // Parse the consequent expression to be executed if the condition is true
-    AST consequent = parseExp();
+    AST consequent = parseSubExp();
 
     // Expect the 'else' keyword following the consequent expression
     Token elseToken = in.readToken();
     if (elseToken != Lexer.ELSE) {
-      error(elseToken, "'else'"); // Report an error if 'else' keyword is missing
+      missing(elseToken, Lexer.ELSE, "'else'"); // Report an error if 'else' keyword is missing
     }
 
     // Parse the alternative expression to be executed if the condition is false
     AST alternative = parseExp();
 
     // Construct and return the If AST node with the parsed components
-    return new If(condition, consequent, alternative);
+    return span(nodes.newIf(condition, consequent, alternative), start);
   }
 
   private AST parseLet() {
+    int start = start();
     // Parse definitions in the 'let' expression. The 'false' parameter indicates that the right-hand side of the definitions doesn't need to be a 'Map'.
     Def[] definitions = parseDefs(false);
 
@@ -167,36 +306,48 @@ class Parser {
     AST body = parseExp();
 
     // Create a new 'Let' AST node using the parsed definitions and body then return this node
-    return new Let(definitions, body);
+    return span(nodes.newLet(definitions, body), start);
   }
 
 
   private AST parseMap() {
+    int start = start();
     // Parse the list of variables to be mapped
-    Variable[] variables = parseVars(); // Consumes the delimiter 'to'
+    Variable[] variables;
+    int base = scratchTop;
+    try {
+      variables = parseVars(); // Consumes the delimiter 'to'
+    }
+    catch (Recovery r) {
+      // resume with the body if the variable list can be skipped up to its 'to'
+      AST error = recover(base);
+      if (in.peek() != Lexer.TO) return error;
+      in.readToken();
+      variables = NO_VARIABLES;
+    }
 
     // Parse the expression that defines what each variable in the list maps to
     AST body = parseExp();
 
     // Construct and return a 'Map' AST node with the parsed variables and the corresponding body expression
-    return new Map(variables, body);
+    return span(nodes.newMap(variables, body), start);
   }
 
   private AST[] parseExps(Token separator, Token delimiter) {
-    // Initialize a list to store the parsed expressions
-    LinkedList<AST> expressions = new LinkedList<AST>();
     Token nextToken = in.peek(); // Look at the next token without consuming it
 
     // If the next token is the delimiter, consume it and return an empty array
     if (nextToken == delimiter) {
       in.readToken(); // Consume the delimiter, typically a closing parenthesis
-      return new AST[0];
+      return NO_ASTS;
     }
 
-    // Parse expressions seperated by the specified seperator until the delimiter is reached
+    // Parse expressions seperated by the specified seperator until the delimiter is reached, collecting them in the
+    // scratch buffer above base
+    int base = scratchTop;
     do {
-      AST exp = parseExp(); // Parse the next expression
-      expressions.addLast(exp); // Add the parsed expression to the list
+      AST exp = parseSubExp(); // Parse the next expression
+      pushScratch(exp); // Add the parsed expression to the scratch buffer
       nextToken = in.readToken(); // Move to the next token, which could be a seperator
     } while (nextToken == separator); // Continue as long as the seperator is encountered
 
@@ -205,29 +356,30 @@ class Parser {
       error(nextToken, "`,' or `)'"); // Throw an error indicating unexpected token
     }
 
-    // Convert the list of expressions to an arrray and return
-    return expressions.toArray(new AST[0]);
+    // Copy the expressions to an array of exactly the right size and return
+    return popScratch(base, new AST[scratchTop - base]);
   }
 
   private AST[] parseArgs() { return parseExps(Comma.ONLY,RightParen.ONLY); }
 
   private Variable[] parseVars() {
-    // Create a list to hold variables parsed from the input
-    LinkedList<Variable> variables = new LinkedList<Variable>();
     Token token = in.readToken(); // Read the first token
 
     // Check if the first token is 'to', indicating an empty variable list
     if (token == Lexer.TO) {
-        return new Variable[0]; // Return an empty array if 'to' is the first token
+        return NO_VARIABLES; // Return an empty array if 'to' is the first token
     }
 
+    // Collect the variables in the scratch buffer above base
+    int base = scratchTop;
+
     // Loop to read variables separated by commas until 'to' is encountered
     do {
         // Ensure the current token is a variable, otherwise throw an error
         if (!(token instanceof Variable)) {
             error(token, "variable");
         }
-        variables.addLast((Variable)token); // Add the variable to the list
+        pushScratch(token); // Add the variable to the scratch buffer
         
         token = in.readToken(); // Read the next token to check for a comma or 'to'
         if (token == Lexer.TO) {
@@ -240,13 +392,13 @@ class Parser {
         token = in.readToken();
     } while (true);
 
-    // Convert the list of variables to an array and return it
-    return variables.toArray(new Variable[0]);
+    // Copy the variables to an array of exactly the right size and return it
+    return popScratch(base, new Variable[scratchTop - base]);
 }
 
 private Def[] parseDefs(boolean forceMap) {
-  // Initialize a list to store definition nodes
-  LinkedList<Def> definitions = new LinkedList<Def>();
+  // Collect the definition nodes in the scratch buffer above base
+  int base = scratchTop;
   Token token = in.readToken(); // Read the first token to start parsing definitions
   
   do {
@@ -258,18 +410,33 @@ private Def[] parseDefs(boolean forceMap) {
           throw new ParseException("right hand side of definition `" + definition + "' is not a map expression");
       }
       
-      // Add the parsed definition to the list
-      definitions.addLast(definition);
+      // Add the parsed definition to the scratch buffer
+      pushScratch(definition);
       
       // Read the next token to determine if the loop should continue
       token = in.readToken();
   } while (token != Lexer.IN); // Continue until 'in' keyword is encountered
   
-  // Convert the list of definitions to an array and return
-  return definitions.toArray(new Def[0]);
+  // Copy the definitions to an array of exactly the right size and return
+  return popScratch(base, new Def[scratchTop - base]);
+}
+
+/** Pushes an element of the list being parsed onto the scratch buffer */
+private void pushScratch(Object o) {
+  if (scratchTop == scratch.length) scratch = Arrays.copyOf(scratch, 2 * scratchTop);
+  scratch[scratchTop++] = o;
+}
+
+/** Moves the scratch buffer elements above base into result, which must have exactly the right length */
+private <T> T[] popScratch(int base, T[] result) {
+  System.arraycopy(scratch, base, result, 0, result.length);
+  Arrays.fill(scratch, base, scratchTop, null);
+  scratchTop = base;
+  return result;
 }
 
 private Def parseDef(Token varToken) {
+  int start = start();
   // Ensure the initial token is a Variable; if not, throw an error
   if (!(varToken instanceof Variable)) {
       error(varToken, "variable");
@@ -277,28 +444,493 @@ private Def parseDef(Token varToken) {
 
   // Read the next token and ensure it is the BIND token (e.g., `:=`)
   Token bindToken = in.readToken();
+  AST expression = null;
   if (bindToken != Lexer.BIND) {
-      error(bindToken, "`:='"); // Throw an error if the token is not a BIND token
+    try {
+      missing(bindToken, Lexer.BIND, "`:='"); // Throw an error if the token is not a BIND token
+    }
+    catch (Recovery r) {
+      // in recovery mode, a definition skipped up to its `;' gets an ErrorNode as its rhs
+      if (in.peek() != SemiColon.ONLY) throw r;
+      expression = new ErrorNode(diagnostics.get(diagnostics.size() - 1));
+    }
   }
 
   // Parse the expression that follows the BIND token
-  AST expression = parseExp();
+  if (expression == null) expression = parseSubExp();
 
   // Read the next token and ensure it is a semi-colon; if not, throw an error
   Token semiColonToken = in.readToken();
   if (semiColonToken != SemiColon.ONLY) {
-      error(semiColonToken, "`;'");
+      missing(semiColonToken, SemiColon.ONLY, "`;'");
   }
 
   // Create a new definition with the variable and the parsed expression
-  return new Def((Variable) varToken, expression);
+  return span(nodes.newDef((Variable) varToken, expression), start);
+}
+
+/** Returns the position of the token just read in span tracking mode */
+private int start() { return spans == null ? 0 : scanner.start(); }
+
+/** Records the span of node from start to the end of the token just read in span tracking mode, and returns node */
+private <T> T span(T node, int start) {
+  if (spans != null) spans.record(node, start, scanner.end());
+  return node;
 }
 
 private AST error(Token found, String expected) {
   // Throw a ParseException with a detailed message about what was expected versus what was found
-  throw new ParseException("Token `" + found + "' appears where " + expected + " was expected");
+  String message = "Token `" + found + "' appears where " + expected + " was expected";
+  if (diagnostics == null) throw new ParseException(message);
+
+  // In recovery mode, report it and unwind to the nearest parseSubExp, leaving a synchronizing token to the construct
+  // expecting it
+  report(message);
+  if (found != null && isSync(found)) ((Recovering) in).unread(found);
+  throw Recovery.ONLY;
+}
+
+/** Reports that found appears where the token expected, described by description, was expected.  In recovery mode,
+  * parsing resumes after expected if it is the synchronizing token that skipping reaches. */
+private void missing(Token found, Token expected, String description) {
+  if (diagnostics == null) error(found, description);
+  report("Token `" + found + "' appears where " + description + " was expected");
+  if (found != null && isSync(found)) ((Recovering) in).unread(found);
+  skip();
+  if (in.peek() != expected) throw Recovery.ONLY;
+  in.readToken();
+}
+
+/** Adds a diagnostic for a syntax error in recovery mode, unless one was added since the last token was read (an
+  * error caused by the recovery from the previous one) */
+private void report(String message) {
+  int reads = ((Recovering) in).reads;
+  if (reads == reportedAt) return;
+  reportedAt = reads;
+  diagnostics.add(diagnostic(message));
+}
+
+/** Returns a ParseException with the specified message at the position of the token just read, if spans are
+  * tracked; it has no stack trace, so that recovery from each error takes constant time */
+private ParseException diagnostic(String message) {
+  if (spans == null) return new ParseException(message, false);
+  long lineColumn = scanner.lineColumn(scanner.start());
+  return new ParseException(message, (int) (lineColumn >>> 32), (int) lineColumn, false);
+}
+
+/* Error recovery.  In recovery mode error() throws Recovery, a preallocated exception without a stack trace, which
+ * unwinds to the nearest parseSubExp (or the variable list of a map).  That returns an ErrorNode after skipping to
+ * a synchronizing token at the same nesting of parentheses; the enclosing construct then carries on, reporting any
+ * further error it meets.  In fail-fast mode Recovery is never thrown, so the try blocks cost nothing. */
+
+/** The exception unwinding the parser to a recovery point */
+private static final class Recovery extends RuntimeException {
+  static final Recovery ONLY = new Recovery();
+  private Recovery() { super(null, null, false, false); }
+}
+
+/** Parses an exp that is followed by a synchronizing token, replacing it by an ErrorNode in recovery mode if it has
+  * an error */
+private AST parseSubExp() {
+  int base = scratchTop;
+  try {
+    return parseExp();
+  }
+  catch (Recovery r) {
+    return recover(base);
+  }
+}
+
+/** Discards the scratch buffer above base, skips to the next synchronizing token and returns an ErrorNode for the
+  * last diagnostic */
+private AST recover(int base) {
+  ParseException diagnostic = diagnostics.get(diagnostics.size() - 1);
+  Arrays.fill(scratch, base, scratchTop, null);
+  scratchTop = base;
+  skip();
+  return new ErrorNode(diagnostic);
+}
+
+/** Skips to the next synchronizing token outside the parentheses opened by the skipped tokens */
+private void skip() {
+  int depth = 0;
+  for (Token t = in.peek(); t != null && (depth > 0 || !isSync(t)); t = in.peek()) {
+    if (t == LeftParen.ONLY) depth++;
+    else if (t == RightParen.ONLY) depth--;
+    in.readToken();
+  }
+}
+
+private static boolean isSync(Token t) {
+  return t == SemiColon.ONLY || t == Lexer.IN || t == Lexer.THEN || t == Lexer.ELSE || t == RightParen.ONLY ||
+    t == Lexer.TO;
+}
+
+/** The token source of a parser in recovery mode: it reports lexical errors as diagnostics and skips the offending
+  * input, lets error() push back the synchronizing token it was handed, and counts the tokens read from the lexer.  A
+  * failure of the input (a ParseException with a cause, such as a Reader's IOException) does not skip any input, so it
+  * is rethrown rather than retried. */
+private final class Recovering implements TokenSource {
+  final TokenSource lexer;
+  private Token unread;
+  int reads = 0;
+
+  Recovering(TokenSource lexer) { this.lexer = lexer; }
+
+  void unread(Token t) { unread = t; }
+
+  public Token peek() {
+    if (unread != null) return unread;
+    while (true) {
+      try { return lexer.peek(); }
+      catch (ParseException e) { report(e); }
+    }
+  }
+
+  public Token readToken() {
+    if (unread != null) {
+      Token t = unread;
+      unread = null;
+      return t;
+    }
+    while (true) {
+      try {
+        Token t = lexer.readToken();
+        if (t != null) reads++;
+        return t;
+      }
+      catch (ParseException e) { report(e); }
+    }
+  }
+
+  /** Adds a diagnostic for the lexical error e, or rethrows e if it is a failure of the input */
+  private void report(ParseException e) {
+    if (e.getCause() != null) throw e;
+    diagnostics.add(diagnostic(e.getMessage()));
+  }
 }
 
+  /* Packed parsing.  parsePacked() is parse() over the kind codes of a PackedTokens stream: it accepts the same
+   * language, builds the same ASTs and reports the same errors, but tests token kinds with int comparisons and
+   * creates Tokens only for error messages.  The token just read is always packed token next - 1. */
+
+  private AST parsePacked() {
+    AST progAST = parsePackedExp();
+    if (packed.kind(next++) != PackedTokens.EOF) throw new ParseException("Unexpected data");
+    return progAST;
+  }
+
+  private AST parsePackedExp() {
+    int kind = packed.kind(next++);
+    if (kind == PackedTokens.IF) return parsePackedIf();
+    if (kind == PackedTokens.LET) return nodes.newLet(parsePackedDefs(), parsePackedExp());
+    if (kind == PackedTokens.MAP) return nodes.newMap(parsePackedVars(), parsePackedExp());
+
+    AST exp = parsePackedTerm(kind);
+    while (PackedTokens.isOp(kind = packed.kind(next))) {
+      next++;
+      OpToken op = PackedTokens.op(kind);
+      if (!op.isBinOp()) packedError("binary operator");
+      exp = nodes.newBinOpApp(op.toBinOp(), exp, parsePackedTerm(packed.kind(next++)));
+    }
+    return exp;
+  }
+
+  private AST parsePackedTerm(int kind) {
+    if (PackedTokens.isOp(kind)) {
+      OpToken op = PackedTokens.op(kind);
+      if (!op.isUnOp()) packedError("unary operator");
+      return nodes.newUnOpApp(op.toUnOp(), parsePackedTerm(packed.kind(next++)));
+    }
+    if (kind == PackedTokens.INT) return IntConstant.valueOf(packed.payload(next - 1));
+    if (PackedTokens.isConstant(kind)) return (Constant) PackedTokens.TOKENS[kind];
+
+    AST factor;
+    if (kind == PackedTokens.LEFT_PAREN) {
+      factor = parsePackedExp();
+      if (packed.kind(next++) != PackedTokens.RIGHT_PAREN) packedError("')'");
+    }
+    else if (kind == PackedTokens.VARIABLE) factor = packed.symbol(packed.payload(next - 1));
+    else if (PackedTokens.isPrim(kind)) factor = (PrimFun) PackedTokens.TOKENS[kind];
+    else return packedError("constant, primitive, variable, or `('");
+
+    if (packed.kind(next) != PackedTokens.LEFT_PAREN) return factor;
+    next++;
+    if (packed.kind(next) == PackedTokens.RIGHT_PAREN) {
+      next++;
+      return nodes.newApp(factor, NO_ASTS);
+    }
+    int base = scratchTop;
+    do {
+      pushScratch(parsePackedExp());
+      kind = packed.kind(next++);
+    } while (kind == PackedTokens.COMMA);
+    if (kind != PackedTokens.RIGHT_PAREN) packedError("`,' or `)'");
+    return nodes.newApp(factor, popScratch(base, new AST[scratchTop - base]));
+  }
+
+  private AST parsePackedIf() {
+    AST test = parsePackedExp();
+    if (packed.kind(next++) != PackedTokens.THEN) packedError("'then'");
+    AST conseq = parsePackedExp();
+    if (packed.kind(next++) != PackedTokens.ELSE) packedError("'else'");
+    return nodes.newIf(test, conseq, parsePackedExp());
+  }
+
+  private Variable[] parsePackedVars() {
+    int kind = packed.kind(next++);
+    if (kind == PackedTokens.TO) return NO_VARIABLES;
+    int base = scratchTop;
+    while (true) {
+      if (kind != PackedTokens.VARIABLE) packedError("variable");
+      pushScratch(packed.symbol(packed.payload(next - 1)));
+      kind = packed.kind(next++);
+      if (kind == PackedTokens.TO) break;
+      if (kind != PackedTokens.COMMA) packedError("'to' or ','");
+      kind = packed.kind(next++);
+    }
+    return popScratch(base, new Variable[scratchTop - base]);
+  }
+
+  private Def[] parsePackedDefs() {
+    int base = scratchTop;
+    int kind = packed.kind(next++);
+    do {
+      if (kind != PackedTokens.VARIABLE) packedError("variable");
+      Variable lhs = packed.symbol(packed.payload(next - 1));
+      if (packed.kind(next++) != PackedTokens.BIND) packedError("`:='");
+      AST rhs = parsePackedExp();
+      if (packed.kind(next++) != PackedTokens.SEMICOLON) packedError("`;'");
+      pushScratch(nodes.newDef(lhs, rhs));
+      kind = packed.kind(next++);
+    } while (kind != PackedTokens.IN);
+    return popScratch(base, new Def[scratchTop - base]);
+  }
+
+  /** Reports the token just read where expected was expected */
+  private AST packedError(String expected) { return error(packed.token(next - 1), expected); }
+
+  /* Explicit-stack parsing.  parseIteratively() accepts the same language and builds the same ASTs as parse(), but
+   * instead of recursing through parseExp, parseTerm and parseFactor it keeps its pending work on two heap-allocated
+   * stacks, so the nesting depth of the program is limited only by memory.  Each entry on the continuation stack
+   * records what to do with the AST produced by the sub-expression or term being parsed; the partially built nodes
+   * it needs (if test, operator, let definitions, ...) wait on the value stack, which is the scratch buffer. */
+  
+  /* continuation codes */
+  private static final int K_DONE = 0;       // the program
+  private static final int K_CHAIN = 1;      // the first term or the partial result of <term> { <binop> <term> }*
+  private static final int K_UNOP = 2;       // the operand of a unary operator; values: operator
+  private static final int K_PAREN = 3;      // the expression in ( <exp> )
+  private static final int K_ARG = 4;        // an argument; values: rator, preceding args; below it: values base
+  private static final int K_THEN = 5;       // the test of an if
+  private static final int K_ELSE = 6;       // the consequent of an if; values: test
+  private static final int K_IF = 7;         // the alternative of an if; values: test, consequent
+  private static final int K_DEF = 8;        // the rhs of a definition; values: preceding defs, lhs; below it: base
+  private static final int K_LET = 9;        // the body of a let; values: defs
+  private static final int K_MAP = 10;       // the body of a map; values: vars
+  private static final int K_BINOP = 11;     // the right operand of a binary operator; values: left operand, operator
+  
+  /* parsing modes of the explicit-stack parser */
+  private static final int M_EXP = 0;        // parse an exp starting with the next token
+  private static final int M_TERM = 1;       // parse a term starting with token
+  private static final int M_FACTOR = 2;     // check for an application of the factor value
+  private static final int M_RETURN = 3;     // pass value to the continuation on top of the stack
+  
+  private int[] konts;
+  private int kontTop;
+  
+  /** Parses a Jam program like parse() using explicit stacks rather than the Java call stack */
+  public AST parseIteratively() throws ParseException {
+    if (diagnostics != null) throw new IllegalStateException("recovery is only supported by parse()");
+    konts = new int[64];
+    kontTop = 0;
+    pushKont(K_DONE);
+    
+    int mode = M_EXP;
+    Token token = null;
+    AST value = null;
+    while (true) {
+      switch (mode) {
+        
+        case M_EXP:
+          token = in.readToken();
+          if (token == Lexer.IF) {
+            pushKont(K_THEN);
+          }
+          else if (token == Lexer.LET) {
+            pushKont(scratchTop);
+            startDef(in.readToken());
+          }
+          else if (token == Lexer.MAP) {
+            pushScratch(parseVars());
+            pushKont(K_MAP);
+          }
+          else {
+            pushKont(K_CHAIN);
+            mode = M_TERM;
+          }
+          break;
+          
+        case M_TERM:
+          if (token instanceof OpToken) {
+            OpToken opToken = (OpToken) token;
+            if (!opToken.isUnOp()) error(opToken, "unary operator");
+            pushScratch(opToken.toUnOp());
+            pushKont(K_UNOP);
+            token = in.readToken();
+          }
+          else if (token instanceof Constant) {
+            value = (Constant) token;
+            mode = M_RETURN;
+          }
+          else if (token == LeftParen.ONLY) {
+            pushKont(K_PAREN);
+            mode = M_EXP;
+          }
+          else {
+            if (!(token instanceof PrimFun) && !(token instanceof Variable)) 
+              error(token, "constant, primitive, variable, or `('");
+            value = (Term) token;
+            mode = M_FACTOR;
+          }
+          break;
+          
+        case M_FACTOR:
+          mode = M_RETURN;
+          if (in.peek() == LeftParen.ONLY) {
+            in.readToken();
+            if (in.peek() == RightParen.ONLY) {
+              in.readToken();
+              value = nodes.newApp(value, NO_ASTS);
+            }
+            else {
+              pushKont(scratchTop);
+              pushScratch(value);
+              pushKont(K_ARG);
+              mode = M_EXP;
+            }
+          }
+          break;
+          
+        case M_RETURN:
+          switch (popKont()) {
+            case K_DONE:
+              if (in.readToken() != null) throw new ParseException("Unexpected data");
+              konts = null;
+              return value;
+            case K_CHAIN: {
+              Token next = in.peek();
+              if (next instanceof OpToken) {
+                in.readToken();
+                OpToken op = (OpToken) next;
+                if (!op.isBinOp()) error(next, "binary operator");
+                pushScratch(value);
+                pushScratch(op.toBinOp());
+                pushKont(K_BINOP);
+                token = in.readToken();
+                mode = M_TERM;
+              }
+              break;
+            }
+            case K_BINOP: {
+              BinOp binOp = (BinOp) popValue();
+              value = nodes.newBinOpApp(binOp, (AST) popValue(), value);
+              pushKont(K_CHAIN);
+              break;
+            }
+            case K_UNOP:
+              value = nodes.newUnOpApp((UnOp) popValue(), value);
+              break;
+            case K_PAREN:
+              token = in.readToken();
+              if (token != RightParen.ONLY) error(token, "')'");
+              mode = M_FACTOR;
+              break;
+            case K_ARG: {
+              pushScratch(value);
+              token = in.readToken();
+              if (token == Comma.ONLY) {
+                pushKont(K_ARG);
+                mode = M_EXP;
+              }
+              else {
+                if (token != RightParen.ONLY) error(token, "`,' or `)'");
+                int base = popKont();
+                AST[] args = popScratch(base + 1, new AST[scratchTop - base - 1]);
+                value = nodes.newApp((AST) popValue(), args);
+              }
+              break;
+            }
+            case K_THEN:
+              token = in.readToken();
+              if (token != Lexer.THEN) error(token, "'then'");
+              pushScratch(value);
+              pushKont(K_ELSE);
+              mode = M_EXP;
+              break;
+            case K_ELSE:
+              token = in.readToken();
+              if (token != Lexer.ELSE) error(token, "'else'");
+              pushScratch(value);
+              pushKont(K_IF);
+              mode = M_EXP;
+              break;
+            case K_IF: {
+              AST conseq = (AST) popValue();
+              value = nodes.newIf((AST) popValue(), conseq, value);
+              break;
+            }
+            case K_DEF: {
+              token = in.readToken();
+              if (token != SemiColon.ONLY) error(token, "`;'");
+              pushScratch(nodes.newDef((Variable) popValue(), value));
+              token = in.readToken();
+              if (token == Lexer.IN) {
+                int base = popKont();
+                pushScratch(popScratch(base, new Def[scratchTop - base]));
+                pushKont(K_LET);
+                mode = M_EXP;
+              }
+              else {
+                startDef(token);
+                mode = M_EXP;
+              }
+              break;
+            }
+            case K_LET:
+              value = nodes.newLet((Def[]) popValue(), value);
+              break;
+            case K_MAP:
+              value = nodes.newMap((Variable[]) popValue(), value);
+              break;
+          }
+          break;
+      }
+    }
+  }
+  
+  /** Parses <id> := in a definition starting with varToken and prepares to parse its rhs */
+  private void startDef(Token varToken) {
+    if (!(varToken instanceof Variable)) error(varToken, "variable");
+    Token bindToken = in.readToken();
+    if (bindToken != Lexer.BIND) error(bindToken, "`:='");
+    pushScratch(varToken);
+    pushKont(K_DEF);
+  }
+  
+  private Object popValue() {
+    Object o = scratch[--scratchTop];
+    scratch[scratchTop] = null;
+    return o;
+  }
+  
+  private void pushKont(int k) {
+    if (kontTop == konts.length) konts = Arrays.copyOf(konts, 2 * kontTop);
+    konts[kontTop++] = k;
+  }
+  
+  private int popKont() { return konts[--kontTop]; }
+  
 /**
 * A legacy "main" method for running the Parser. This method checks if the command-line
 * arguments are valid, creates a parser instance, and parses the given file.
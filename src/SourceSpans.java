@@ -0,0 +1,80 @@
+/** The source spans of the composite AST nodes built by a Parser in span tracking mode (see Parser.spans), kept in a
+  * side table so that nodes need no position fields and parsing without tracking pays nothing for them.
+  *
+  * Each node recorded gets the next node id, and spans[id] packs the position at which its first token starts in the
+  * high 32 bits and the position just after its last token in the low 32 bits; positions are those of the lexer,
+  * chars for a CharLexer and bytes for a MappedLexer.  The id of a node is found through an open addressing table
+  * keyed by node identity.  Leaves (variables, constants and primitives) are shared by all their occurrences and
+  * have no span; a node shared by hash-consing keeps the span of its first occurrence.
+  */
+
+import java.util.Arrays;
+
+class SourceSpans {
+
+  /** The spans indexed by node id */
+  private long[] spans = new long[64];
+  private int size = 0;
+
+  /* the identity table from nodes to their ids */
+  private Object[] nodes = new Object[128];
+  private int[] ids = new int[128];
+
+  /** Records the span start..end of node unless it already has one, and returns the id of node */
+  int record(Object node, int start, int end) {
+    int i = find(node);
+    if (nodes[i] != null) return ids[i];
+    if (size == spans.length) spans = Arrays.copyOf(spans, 2 * size);
+    spans[size] = (long) start << 32 | end;
+    nodes[i] = node;
+    ids[i] = size;
+    if (2 * ++size > nodes.length) rehash();
+    return size - 1;
+  }
+
+  /** Returns the number of nodes with spans */
+  int size() { return size; }
+
+  /** Returns the id of node, or -1 if it has no span */
+  int id(Object node) {
+    int i = find(node);
+    return nodes[i] == null ? -1 : ids[i];
+  }
+
+  /** Returns the packed span of the node with the specified id */
+  long span(int id) { return spans[id]; }
+
+  /** Returns the position at which the first token of node starts, or -1 if it has no span */
+  int start(Object node) {
+    int id = id(node);
+    return id < 0 ? -1 : (int) (spans[id] >>> 32);
+  }
+
+  /** Returns the position just after the last token of node, or -1 if it has no span */
+  int end(Object node) {
+    int id = id(node);
+    return id < 0 ? -1 : (int) spans[id];
+  }
+
+  /** Returns the slot of node in the table, or the empty slot where it belongs */
+  private int find(Object node) {
+    int mask = nodes.length - 1;
+    int i = System.identityHashCode(node) & mask;
+    while (nodes[i] != null && nodes[i] != node) i = (i + 1) & mask;
+    return i;
+  }
+
+  private void rehash() {
+    Object[] oldNodes = nodes;
+    int[] oldIds = ids;
+    nodes = new Object[2 * oldNodes.length];
+    ids = new int[nodes.length];
+    for (int j = 0; j < oldNodes.length; j++) {
+      if (oldNodes[j] != null) {
+        int i = find(oldNodes[j]);
+        nodes[i] = oldNodes[j];
+        ids[i] = oldIds[j];
+      }
+    }
+  }
+}
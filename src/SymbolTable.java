@@ -0,0 +1,33 @@
+/** A thread-safe table mapping words to their Tokens that can be shared by many lexers, so that an identifier is
+  * represented by the same Variable object in every program lexed through the table.
+  *
+  * The table is a ConcurrentHashMap: lookups of words already present (keywords, constants, primitives and
+  * previously seen identifiers) never lock, and the first insertion of a word is a CAS on an empty bin or a short
+  * lock on a single bin.  The entries installed by Lexer.initWordTable are loaded once, when the table is created.
+  * Entries are never removed, so a table retains every identifier ever lexed through it.
+  */
+
+import java.util.concurrent.ConcurrentHashMap;
+
+class SymbolTable {
+
+  /** The table shared by default across all lexers constructed with a SymbolTable argument of SHARED. */
+  static final SymbolTable SHARED = new SymbolTable();
+
+  private final ConcurrentHashMap<String,Token> table = new ConcurrentHashMap<String,Token>(256);
+
+  SymbolTable() { Lexer.initWordTable(table); }
+
+  /** Returns the Token for the specified word, creating and installing a new Variable if the word is new; if two
+    * threads install the same new word concurrently, both get the Variable that won the race. */
+  Token intern(String word) {
+    Token token = table.get(word);
+    if (token != null) return token;
+    Variable newVar = new Variable(word);
+    token = table.putIfAbsent(word, newVar);
+    return token == null ? newVar : token;
+  }
+
+  /** Returns the number of words in the table */
+  int size() { return table.size(); }
+}
@@ -0,0 +1,141 @@
+/** An AST visitor that writes the concrete syntax of an AST (exactly the text produced by the toString() methods of
+  * the AST classes) to an Appendable in a single pass.
+  *
+  * The visitor does not recurse on the Java stack.  Visiting a composite node pushes its pieces, in reverse order,
+  * onto an explicit work stack; each piece is either a String to append or an AST or Def still to be unparsed.
+  * Hence unparsing is linear in the size of the output and works for trees of any depth.
+  */
+
+import java.io.IOException;
+import java.util.Arrays;
+
+class Unparser implements ASTVisitor<Void> {
+
+  private Object[] work = new Object[64];
+  private int top = 0;
+
+  /** Writes the concrete syntax of ast to out */
+  static void unparse(AST ast, Appendable out) throws IOException { new Unparser().run(ast, out); }
+
+  /** Returns the concrete syntax of ast */
+  static String toString(AST ast) { return toString((Object) ast); }
+
+  /** Returns the concrete syntax of the definition d */
+  static String toString(Def d) { return toString((Object) d); }
+
+  private static String toString(Object o) {
+    StringBuilder sb = new StringBuilder();
+    try { new Unparser().run(o, sb); }
+    catch (IOException e) { throw new AssertionError(e); }  // StringBuilder does not throw IOException
+    return sb.toString();
+  }
+
+  /** Unparses the AST or Def o into out */
+  private void run(Object o, Appendable out) throws IOException {
+    push(o);
+    while (top > 0) {
+      Object piece = work[--top];
+      work[top] = null;
+      if (piece instanceof String) out.append((String) piece);
+      else if (piece instanceof AST) ((AST) piece).accept(this);
+      else {
+        Def d = (Def) piece;
+        push(";");
+        push(d.rhs());
+        push(" := ");
+        push(d.lhs().name());
+      }
+    }
+  }
+
+  private void push(Object piece) {
+    if (top == work.length) work = Arrays.copyOf(work, 2 * top);
+    work[top++] = piece;
+  }
+
+  /** Pushes the elements of a (ASTs or Defs) separated by sep, in reverse order. */
+  private void pushAll(Object[] a, String sep) {
+    for (int i = a.length - 1; i >= 0; i--) {
+      push(a[i]);
+      if (i > 0) push(sep);
+    }
+  }
+
+  /** Pushes an operand of a binary operator, which is enclosed in parentheses unless it is a Term. */
+  private void pushOperand(AST arg) {
+    if (arg instanceof Term) push(arg);
+    else {
+      push(")");
+      push(arg);
+      push("(");
+    }
+  }
+
+  public Void forBoolConstant(BoolConstant b) { push(b.toString()); return null; }
+  public Void forIntConstant(IntConstant i) { push(i.toString()); return null; }
+  public Void forEmptyConstant(EmptyConstant n) { push(n.toString()); return null; }
+  public Void forJamEmpty(JamEmpty je) { push(je.toString()); return null; }
+  public Void forVariable(Variable v) { push(v.name()); return null; }
+  public Void forPrimFun(PrimFun f) { push(f.name()); return null; }
+  public Void forErrorNode(ErrorNode e) { push(e.toString()); return null; }
+
+  public Void forUnOpApp(UnOpApp u) {
+    push(u.arg());
+    push(" ");
+    push(u.rator().toString());
+    return null;
+  }
+
+  public Void forBinOpApp(BinOpApp b) {
+    push(")");
+    pushOperand(b.arg2());
+    push(" ");
+    push(b.rator().toString());
+    push(" ");
+    pushOperand(b.arg1());
+    push("(");
+    return null;
+  }
+
+  public Void forApp(App a) {
+    AST rator = a.rator();
+    push(")");
+    pushAll(a.args(), ", ");
+    if ((rator instanceof PrimFun) || (rator instanceof Variable)) {
+      push("(");
+      push(rator);
+    }
+    else {
+      push(")(");
+      push(rator);
+      push("(");
+    }
+    return null;
+  }
+
+  public Void forMap(Map m) {
+    push(m.body());
+    push(" to ");
+    pushAll(m.vars(), ",");
+    push("map ");
+    return null;
+  }
+
+  public Void forIf(If i) {
+    push(i.alt());
+    push(" else ");
+    push(i.conseq());
+    push(" then ");
+    push(i.test());
+    push("if ");
+    return null;
+  }
+
+  public Void forLet(Let l) {
+    push(l.body());
+    push(" in ");
+    pushAll(l.defs(), " ");
+    push("let ");
+    return null;
+  }
+}
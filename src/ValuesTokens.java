@@ -24,7 +24,35 @@ class IntConstant implements Token, Constant, JamVal {
   private int value;
   
   IntConstant(int i) { value = i; }
-  // duplicates can occur!
+  // duplicates can occur outside the range of the cache below!
+  
+  /** The bounds of the range of preallocated IntConstants, which can be set by the system properties
+    * jam.intcache.low and jam.intcache.high. */
+  static final int CACHE_LOW = Integer.getInteger("jam.intcache.low", -1024);
+  static final int CACHE_HIGH = (int) Math.max(CACHE_LOW - 1L, Integer.getInteger("jam.intcache.high", 65535));
+  
+  private static final IntConstant[] CACHE = new IntConstant[cacheSize()];
+  
+  /** Returns the number of values from CACHE_LOW to CACHE_HIGH, which is computed in long arithmetic since it can
+    * exceed Integer.MAX_VALUE; a range too large for an array is rejected. */
+  private static int cacheSize() {
+    long size = (long) CACHE_HIGH - CACHE_LOW + 1;
+    if (size > Integer.MAX_VALUE - 8) {
+      throw new IllegalArgumentException("jam.intcache.low = " + CACHE_LOW + " and jam.intcache.high = " + CACHE_HIGH +
+                                         " span " + size + " values, more than an array can hold");
+    }
+    return (int) size;
+  }
+  static {
+    for (int i = 0; i < CACHE.length; i++) CACHE[i] = new IntConstant(CACHE_LOW + i);
+  }
+  
+  /** A factory method that returns the IntConstant representing i; within the cache range it returns the shared 
+    * instance, so == can be used to compare such constants. */
+  public static IntConstant valueOf(int i) {
+    if (i >= CACHE_LOW && i <= CACHE_HIGH) return CACHE[i - CACHE_LOW];
+    return new IntConstant(i);
+  }
   
   public int value() { return value; }
   
@@ -36,7 +64,7 @@ class IntConstant implements Token, Constant, JamVal {
       (value == ((IntConstant)other).value());
   }
   /** computes the obvious hashcode for this consistent with equals. */
-  public int hashcode() { return value; }
+  public int hashCode() { return value; }
   public String toString() { return String.valueOf(value); }
 }
 
@@ -75,6 +103,8 @@ interface PureList<ElemType> {
   abstract <ResType> ResType accept(PureListVisitor<ElemType, ResType> v);
   abstract String toStringHelp();
   abstract PureList<ElemType> append(PureList<ElemType> addedElts);
+  /** Writes the text of this list, as returned by toString(), to out */
+  abstract void print(Appendable out) throws java.io.IOException;
 }
 
 /** The visitor interface for the type PureList<T> */
@@ -89,6 +119,45 @@ abstract class PureListClass<ElemType> implements PureList<ElemType> {
   public PureList<ElemType> empty() { return new Empty<ElemType>(); }
   public abstract <ResType> ResType accept(PureListVisitor<ElemType, ResType> v);  
   // preceding DICTATED BY BUG IN JSR-14
+
+  /** Writes the text of this list to out in a loop, keeping the rests of the enclosing lists on an explicit stack
+    * while an element list is printed, so printing takes linear time and constant Java stack. */
+  public void print(Appendable out) throws java.io.IOException {
+    java.util.ArrayDeque<PureList<?>> enclosing = new java.util.ArrayDeque<PureList<?>>();
+    PureList<?> l = this;
+    boolean first = true;
+    out.append('(');
+    while (true) {
+      if (l instanceof Cons) {
+        Cons<?> c = (Cons<?>) l;
+        if (! first) out.append(' ');
+        first = false;
+        Object elt = c.first();
+        if (elt instanceof PureList) {
+          enclosing.push(c.rest());
+          l = (PureList<?>) elt;
+          first = true;
+          out.append('(');
+        }
+        else {
+          out.append(String.valueOf(elt));
+          l = c.rest();
+        }
+      }
+      else {
+        out.append(')');
+        if (enclosing.isEmpty()) return;
+        l = enclosing.pop();
+      }
+    }
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    try { print(sb); }
+    catch (java.io.IOException e) { throw new AssertionError(e); }  // StringBuilder does not throw IOException
+    return sb.toString();
+  }
 }
 
 /** The empty PureList<T> class */
@@ -112,22 +181,36 @@ class Cons<ElemType> extends PureListClass<ElemType> {
   Cons(ElemType f, PureList<ElemType> r) { first = f; rest = r; }
   
   public <ResType> ResType accept(PureListVisitor<ElemType,ResType> v) { return v.forCons(this); }
+  /** Copies the elements of this list onto addedElts, in a loop */
   public PureList<ElemType> append(PureList<ElemType> addedElts) { 
-    return new Cons<ElemType>(first, rest.append(addedElts)); 
+    java.util.ArrayList<ElemType> elts = new java.util.ArrayList<ElemType>();
+    PureList<ElemType> l = this;
+    for (; l instanceof Cons; l = ((Cons<ElemType>) l).rest()) elts.add(((Cons<ElemType>) l).first());
+    PureList<ElemType> result = l.append(addedElts);
+    for (int i = elts.size() - 1; i >= 0; i--) result = new Cons<ElemType>(elts.get(i), result);
+    return result;
   }
   
   public ElemType first() { return first; }
   public PureList<ElemType> rest() { return rest; }
   
+  /** Compares the lists cell by cell in a loop; only element lists are compared recursively */
   public boolean equals(Object other) { 
-    if (other == null || this.getClass() != other.getClass()) return false;
-    Cons otherCons = (Cons) other;
-    return first.equals(otherCons.first) && rest.equals(otherCons.rest);
+    Object l = this, m = other;
+    while (l instanceof Cons && m != null && l.getClass() == m.getClass()) {
+      if (l == m) return true;
+      Cons<?> lCons = (Cons<?>) l, mCons = (Cons<?>) m;
+      if (! lCons.first().equals(mCons.first())) return false;
+      l = lCons.rest();
+      m = mCons.rest();
+    }
+    return ! (l instanceof Cons) && l.equals(m);
   }
   
-  public String toString() { return "(" + first + rest.toStringHelp() + ")"; }
-  
-  public String toStringHelp() { return " " + first + rest.toStringHelp(); }
+  public String toStringHelp() {
+    String s = toString();
+    return " " + s.substring(1, s.length() - 1);
+  }
 }
 
 /** The Jam List class representing JamVals that are PureLists. 
@@ -144,23 +227,151 @@ class JamEmpty extends Empty<JamVal> implements JamList {
   private JamEmpty() {}
   
   public JamEmpty empty() { return ONLY; }
-  public JamCons cons(JamVal v) { return new JamCons(v, this); }
+  public JamCons cons(JamVal v) { return ChunkedJamCons.cons(v, this); }
   public <ResType> ResType accept(JamValVisitor<ResType> v) { return v.forJamList(this); }
   public <ResType> ResType accept(ASTVisitor<ResType> v) { return v.forJamEmpty(this); }
 }
 
+/** A non-empty JamList; lists built by the cons operations of JamList are ChunkedJamConses, and those built by the
+  * constructor are linked cells. */
 class JamCons extends Cons<JamVal> implements JamList {
   public JamCons(JamVal v, JamList vList) {
     super(v, vList);
   }
   public JamEmpty empty() { return JamEmpty.ONLY; }
-  public JamCons cons(JamVal v) { return new JamCons(v, this); }
+  public JamCons cons(JamVal v) { return ChunkedJamCons.cons(v, this); }
   
   public <ResType> ResType accept(JamValVisitor<ResType> v) { return v.forJamList(this); }
   public JamList rest() { return (JamList) super.rest(); }
+
+  /** Compares the elements of the lists, whatever their representation */
+  public boolean equals(Object other) {
+    if (! (other instanceof JamCons)) return false;
+    JamList l = this, m = (JamList) other;
+    while (l instanceof JamCons && m instanceof JamCons) {
+      if (l == m) return true;
+      if (! ((JamCons) l).first().equals(((JamCons) m).first())) return false;
+      l = ((JamCons) l).rest();
+      m = ((JamCons) m).rest();
+    }
+    return l == m;
+  }
+
+  public int hashCode() {
+    int hash = 1;
+    for (JamList l = this; l instanceof JamCons; l = ((JamCons) l).rest()) {
+      hash = 31 * hash + ((JamCons) l).first().hashCode();
+    }
+    return hash;
+  }
+}
+
+/** A non-empty JamList whose elements are stored in arrays (chunks) rather than in a cell per element.
+  *
+  * A chunk holds a run of consecutive elements of a list followed by its tail, the rest of the list after the run,
+  * and is filled from its end toward its start.  A ChunkedJamCons is the list starting at some index of a chunk.
+  * Consing onto the list starting at the lowest filled index stores the new element in the free slot below it, so a
+  * list built by repeated consing occupies a few arrays, each twice the size of the last up to MAX_CHUNK, rather than
+  * a linked cell per element; consing onto any other list (one that has already been consed onto) starts a new small
+  * chunk whose tail is that list.  The list starting at an index is a small view object that need not be retained:
+  * rest() creates the view of the next index, so a list costs about one reference per element however it is
+  * traversed.
+  *
+  * The lowest filled index of a chunk is claimed with a compare-and-set, so lists may be consed onto from several
+  * threads.
+  */
+final class ChunkedJamCons extends JamCons {
+
+  static final int FIRST_CHUNK = 4;
+  static final int MAX_CHUNK = 4096;
+
+  /** A run of elements followed by a tail */
+  static final class Chunk {
+    final JamVal[] elems;
+    final JamList tail;
+    /** The number of elements in tail, or -1 if it is not known */
+    final int tailLength;
+    /** The lowest filled index of elems */
+    volatile int low;
+
+    /** Constructs a chunk of size elements holding v in its last slot */
+    Chunk(int size, JamVal v, JamList tail) {
+      elems = new JamVal[size];
+      elems[size - 1] = v;
+      this.tail = tail;
+      tailLength = tail instanceof ChunkedJamCons ? ((ChunkedJamCons) tail).length : tail instanceof JamEmpty ? 0 : -1;
+      low = size - 1;
+    }
+
+    private static final java.util.concurrent.atomic.AtomicIntegerFieldUpdater<Chunk> LOW =
+      java.util.concurrent.atomic.AtomicIntegerFieldUpdater.newUpdater(Chunk.class, "low");
+
+    /** Claims the slot below index, which is free if index is the lowest filled index */
+    boolean claim(int index) { return index > 0 && low == index && LOW.compareAndSet(this, index, index - 1); }
+  }
+
+  private final Chunk chunk;
+  private final int index;
+  /** The number of elements in this list, or -1 if it is not known (when a tail is a linked JamCons) */
+  private final int length;
+
+  private ChunkedJamCons(Chunk chunk, int index) {
+    super(chunk.elems[index], null);
+    this.chunk = chunk;
+    this.index = index;
+    length = chunk.tailLength < 0 ? -1 : chunk.tailLength + chunk.elems.length - index;
+  }
+
+  /** Returns the list of v followed by the elements of l */
+  static ChunkedJamCons cons(JamVal v, JamList l) {
+    if (l instanceof ChunkedJamCons) {
+      ChunkedJamCons c = (ChunkedJamCons) l;
+      if (c.chunk.claim(c.index)) {
+        c.chunk.elems[c.index - 1] = v;
+        return new ChunkedJamCons(c.chunk, c.index - 1);
+      }
+    }
+    Chunk chunk = new Chunk(nextSize(l), v, l);
+    return new ChunkedJamCons(chunk, chunk.low);
+  }
+
+  /** Returns the size of a new chunk in front of l, which grows when l fills its chunk but not when l has already
+    * been consed onto, so that branching off a long list costs a small chunk */
+  private static int nextSize(JamList l) {
+    if (! (l instanceof ChunkedJamCons) || ((ChunkedJamCons) l).index > 0) return FIRST_CHUNK;
+    return Math.min(2 * ((ChunkedJamCons) l).chunk.elems.length, MAX_CHUNK);
+  }
+
+  public JamCons cons(JamVal v) { return cons(v, this); }
+
+  public JamList rest() { return index + 1 < chunk.elems.length ? new ChunkedJamCons(chunk, index + 1) : chunk.tail; }
+
+  /** Returns the number of elements in this list, in constant time unless the list ends in linked JamCons cells */
+  int length() {
+    if (length >= 0) return length;
+    int n = chunk.elems.length - index;
+    for (JamList l = chunk.tail; l instanceof JamCons; l = ((JamCons) l).rest()) n++;
+    return n;
+  }
+
+  /** Returns element k of this list, skipping whole chunks, of which a list built by consing has O(log n) up to
+    * MAX_CHUNK elements and n / MAX_CHUNK beyond */
+  JamVal nth(int i) {
+    int k = i;
+    JamList l = this;
+    while (l instanceof ChunkedJamCons) {
+      ChunkedJamCons c = (ChunkedJamCons) l;
+      int run = c.chunk.elems.length - c.index;
+      if (k < run) return c.chunk.elems[c.index + k];
+      k -= run;
+      l = c.chunk.tail;
+    }
+    for (; l instanceof JamCons; l = ((JamCons) l).rest(), k--) if (k == 0) return ((JamCons) l).first();
+    throw new IndexOutOfBoundsException("list index " + i);
+  }
 }
 
-/** The basic Jam Binding class. Can be extended to support lazy (CBN) bindings. */
+/** The basic Jam Binding class. Extended by the lazy NameBinding and NeedBinding used by the Interpreter. */
 abstract class Binding {
   Variable var;
   JamVal value;
@@ -188,15 +399,17 @@ interface JamFunVisitor<ResType> {
   ResType forPrimFun(PrimFun pf);
 }
 
-/** The class representing a Jam Closure. */
+/** The class representing a Jam Closure.  The environment is the values of the free variables of the map, in the
+  * order of the captures of its FlatMap (see Resolver), so a closure keeps alive only the values it can reference. */
 class JamClosure extends JamFun {
   private Map body;
-  private PureList<Binding> env;
+  private JamVal[] captured;
   
-  JamClosure(Map b, PureList<Binding> e) { body = b; env = e; }
+  JamClosure(Map b, JamVal[] c) { body = b; captured = c; }
   Map body() { return body; }
-  PureList<Binding> env() { return env; }
+  JamVal[] captured() { return captured; }
   public <ResType> ResType accept(JamFunVisitor<ResType> jfv) { return jfv.forJamClosure(this); }
+  public String toString() { return "(closure: " + body + ")"; }
 }
 
 /** The class representing a Jam Primitive Function. 